@@ -0,0 +1,343 @@
+package core;
+
+/**
+ * Precomputed masks for a board that fits in 64 bits. Each column uses
+ * rows + 1 bits, bottom cell first, and the spare top bit is always empty so
+ * shifted runs never wrap into the next column. A position is two masks: the
+ * tokens of one player and the mask of all tokens.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Rules
+ * @see Connect4.GameBoard
+ */
+public final class BitboardLayout {
+	private static final BitboardLayout STANDARD = new BitboardLayout(Connect4Rules.STANDARD);
+
+	private final Connect4Rules rules;
+	private final int rows;
+	private final int cols;
+	private final int connect;
+	private final int height1;
+	private final long bottomMask;
+	private final long boardMask;
+	private final long[] columnMasks;
+	private final int[] centerOrder;
+	private final int[] weightValues;
+	private final long[] weightMasks;
+
+	/**
+	 * Returns the layout for the rules
+	 *
+	 * @param rules Board geometry and winning run length
+	 * @return layout of the board
+	 * @throws IllegalArgumentException if the board does not fit in 64 bits
+	 */
+	public static BitboardLayout of(Connect4Rules rules) throws IllegalArgumentException {
+		return rules.equals(STANDARD.rules) ? STANDARD : new BitboardLayout(rules);
+	}
+
+	private BitboardLayout(Connect4Rules rules) {
+		if (!rules.fitsBitboard())
+			throw new IllegalArgumentException("Board " + rules + " does not fit in 64 bits");
+		this.rules = rules;
+		rows = rules.getRows();
+		cols = rules.getCols();
+		connect = rules.getConnect();
+		height1 = rows + 1;
+		columnMasks = new long[cols];
+		centerOrder = new int[cols];
+		long bottom = 0;
+		for (int col = 0; col < cols; col++) {
+			bottom |= 1L << (col * height1);
+			columnMasks[col] = ((1L << rows) - 1) << (col * height1);
+			// 3, 2, 4, 1, 5, 0, 6 for 7 columns
+			centerOrder[col] = cols / 2 + (1 - 2 * (col % 2)) * (col + 1) / 2;
+		}
+		bottomMask = bottom;
+		boardMask = bottom * ((1L << rows) - 1);
+
+		// group cells by the number of winning lines through them
+		int[] lines = new int[64];
+		int maxLines = 0;
+		int[][] dirs = { { 1, 0 }, { 0, 1 }, { 1, 1 }, { 1, -1 } };
+		for (int col = 0; col < cols; col++) {
+			for (int h = 0; h < rows; h++) {
+				for (int[] d : dirs) {
+					int endCol = col + (connect - 1) * d[0];
+					int endH = h + (connect - 1) * d[1];
+					if (endCol < 0 || endCol >= cols || endH < 0 || endH >= rows)
+						continue;
+					for (int i = 0; i < connect; i++) {
+						int bit = (col + i * d[0]) * height1 + h + i * d[1];
+						maxLines = Math.max(maxLines, ++lines[bit]);
+					}
+				}
+			}
+		}
+		long[] byValue = new long[maxLines + 1];
+		int distinct = 0;
+		for (int bit = 0; bit < 64; bit++) {
+			if (lines[bit] > 0 && byValue[lines[bit]] == 0)
+				distinct++;
+			if (lines[bit] > 0)
+				byValue[lines[bit]] |= 1L << bit;
+		}
+		weightValues = new int[distinct];
+		weightMasks = new long[distinct];
+		for (int v = 1, i = 0; v <= maxLines; v++) {
+			if (byValue[v] != 0) {
+				weightValues[i] = v;
+				weightMasks[i++] = byValue[v];
+			}
+		}
+	}
+
+	/**
+	 * Returns the rules of this layout
+	 *
+	 * @return board geometry and winning run length
+	 */
+	public Connect4Rules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Returns the number of bits used by a column, including the spare top bit
+	 *
+	 * @return rows + 1
+	 */
+	public int getHeight1() {
+		return height1;
+	}
+
+	/**
+	 * Returns the mask of the bottom cell of every column
+	 *
+	 * @return bottom row mask
+	 */
+	public long getBottomMask() {
+		return bottomMask;
+	}
+
+	/**
+	 * Returns the mask of every playable cell
+	 *
+	 * @return board mask without the spare top bits
+	 */
+	public long getBoardMask() {
+		return boardMask;
+	}
+
+	/**
+	 * Returns the mask of all cells of a column
+	 *
+	 * @param col 0-based column
+	 * @return column mask
+	 */
+	public long columnMask(int col) {
+		return columnMasks[col];
+	}
+
+	/**
+	 * Returns the columns, center first
+	 *
+	 * @return shared array of columns, must not be modified
+	 */
+	int[] centerOrder() {
+		return centerOrder;
+	}
+
+	/**
+	 * Returns the cells a token can be dropped into, one per open column
+	 *
+	 * @param mask all tokens on the board
+	 * @return mask of playable cells
+	 */
+	public long possible(long mask) {
+		return (mask + bottomMask) & boardMask;
+	}
+
+	/**
+	 * Returns the playable cell of a column
+	 *
+	 * @param mask all tokens on the board
+	 * @param col  0-based column
+	 * @return bit of the next free cell in col, 0 if the column is full
+	 */
+	public long moveBit(long mask, int col) {
+		return possible(mask) & columnMasks[col];
+	}
+
+	/**
+	 * Returns the 0-based column of a cell bit
+	 *
+	 * @param bit a single cell
+	 * @return column containing the cell
+	 */
+	public int columnOf(long bit) {
+		return Long.numberOfTrailingZeros(bit) / height1;
+	}
+
+	/**
+	 * Returns the bit of a cell
+	 *
+	 * @param col 0-based column
+	 * @param h   height in the column, 0 is the bottom row
+	 * @return cell bit
+	 */
+	public long cellBit(int col, int h) {
+		return 1L << (col * height1 + h);
+	}
+
+	/**
+	 * Mirrors a mask left to right
+	 *
+	 * @param b tokens or mask to mirror
+	 * @return b with column i moved to column cols - 1 - i
+	 */
+	public long mirror(long b) {
+		long column = (1L << height1) - 1;
+		long m = 0;
+		for (int col = 0; col < cols; col++)
+			m |= ((b >>> (col * height1)) & column) << ((cols - 1 - col) * height1);
+		return m;
+	}
+
+	/**
+	 * Returns the mask of legal columns, bit i set if column i is open
+	 *
+	 * @param mask all tokens on the board
+	 * @return legal column mask
+	 */
+	public int legalColumns(long mask) {
+		long possible = possible(mask);
+		int legal = 0;
+		for (int col = 0; col < cols; col++) {
+			if ((possible & columnMasks[col]) != 0)
+				legal |= 1 << col;
+		}
+		return legal;
+	}
+
+	/**
+	 * Checks a player's tokens for a winning run in any direction. Vertical
+	 * neighbours are 1 bit apart, horizontal neighbours height1 bits apart and
+	 * the diagonals height1 - 1 and height1 + 1.
+	 *
+	 * @param b tokens of one player
+	 * @return true if b contains a winning run
+	 */
+	public boolean isWin(long b) {
+		if (connect == 4) {
+			long m = b & (b >> 1);
+			if ((m & (m >> 2)) != 0)
+				return true;
+			m = b & (b >> height1);
+			if ((m & (m >> 2 * height1)) != 0)
+				return true;
+			m = b & (b >> (height1 - 1));
+			if ((m & (m >> 2 * (height1 - 1))) != 0)
+				return true;
+			m = b & (b >> (height1 + 1));
+			return (m & (m >> 2 * (height1 + 1))) != 0;
+		}
+		return hasRun(b, 1) || hasRun(b, height1) || hasRun(b, height1 - 1) || hasRun(b, height1 + 1);
+	}
+
+	private boolean hasRun(long b, int shift) {
+		long m = b;
+		for (int i = 1; i < connect && m != 0; i++)
+			m = i * shift < 64 ? m & (b >>> (i * shift)) : 0;
+		return m != 0;
+	}
+
+	/**
+	 * Checks only the four lines through one token for a winning run, walking
+	 * out from it in both directions until a gap. The empty bit above each
+	 * column stops the horizontal and diagonal walks at the board's edges.
+	 *
+	 * @param b   tokens of one player
+	 * @param bit the token just set, one bit of b
+	 * @return true if bit is part of a winning run in b
+	 */
+	public boolean isWinThrough(long b, long bit) {
+		return runThrough(b, bit, 1) >= connect || runThrough(b, bit, height1) >= connect
+				|| runThrough(b, bit, height1 - 1) >= connect || runThrough(b, bit, height1 + 1) >= connect;
+	}
+
+	private int runThrough(long b, long bit, int shift) {
+		int n = 1;
+		for (long x = bit << shift; n < connect && (b & x) != 0; x <<= shift)
+			n++;
+		for (long x = bit >>> shift; n < connect && (b & x) != 0; x >>>= shift)
+			n++;
+		return n;
+	}
+
+	/**
+	 * Returns the playable cells that complete a winning run for a player
+	 *
+	 * @param b    tokens of the player
+	 * @param mask all tokens on the board
+	 * @return mask of winning moves
+	 */
+	public long winningMoves(long b, long mask) {
+		long possible = possible(mask);
+		long wins = 0;
+		for (long p = possible; p != 0; p &= p - 1) {
+			long bit = p & -p;
+			if (isWin(b | bit))
+				wins |= bit;
+		}
+		return wins;
+	}
+
+	/**
+	 * Returns the empty cells, playable or not, that would complete a winning
+	 * run for a player. Computed with shifts for connect-4; other run lengths
+	 * only report the playable cells.
+	 *
+	 * @param b    tokens of the player
+	 * @param mask all tokens on the board
+	 * @return mask of threat cells
+	 */
+	public long threatCells(long b, long mask) {
+		if (connect != 4)
+			return winningMoves(b, mask);
+		// vertical
+		long r = (b << 1) & (b << 2) & (b << 3);
+		r |= threats(b, height1);
+		r |= threats(b, height1 - 1);
+		r |= threats(b, height1 + 1);
+		return r & (boardMask ^ mask);
+	}
+
+	/**
+	 * Cells completing three tokens spaced s bits apart, from either side or a
+	 * gap in the middle
+	 */
+	private static long threats(long b, int s) {
+		long p = (b << s) & (b << 2 * s);
+		long r = p & (b << 3 * s);
+		r |= p & (b >>> s);
+		p = (b >>> s) & (b >>> 2 * s);
+		r |= p & (b << s);
+		r |= p & (b >>> 3 * s);
+		return r;
+	}
+
+	/**
+	 * Scores cells by the number of winning lines through them
+	 *
+	 * @param own      tokens of the player to score for
+	 * @param opponent tokens of the other player
+	 * @return positional score, positive if own is better placed
+	 */
+	public int positionalScore(long own, long opponent) {
+		int score = 0;
+		for (int i = 0; i < weightMasks.length; i++)
+			score += weightValues[i] * (Long.bitCount(own & weightMasks[i]) - Long.bitCount(opponent & weightMasks[i]));
+		return score;
+	}
+}
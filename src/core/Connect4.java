@@ -42,29 +42,88 @@ public class Connect4 implements Serializable {
 	 * and instantiated.
 	 */
 	public Connect4() {
-		gb = new GameBoard();
+		this(Connect4Rules.STANDARD);
+	}
+
+	/**
+	 * Initializes a new Connect4 game played with the given rules
+	 * 
+	 * @param rules Board geometry and winning run length
+	 */
+	public Connect4(Connect4Rules rules) {
+		gb = new GameBoard(rules);
 		tie = true;
 		play = true;
 	}
 
 	/**
-	 * Gameboard class
+	 * Gameboard class. When the board fits in 64 bits the position is kept as a
+	 * bitboard: one mask per player plus the height of every column, laid out as
+	 * described in BitboardLayout. Larger boards keep one byte per cell in the
+	 * same column-major order.
+	 * <p>
+	 * Every move is pushed on a stack of one byte per ply, so makeMove and
+	 * undoMove play and take back moves without copying the board. Both keep
+	 * the column heights, a Zobrist hash of the position and, on bitboards, the
+	 * threat evaluation up to date as they go.
 	 */
 	public class GameBoard {
-		public char[][] board;
-		int rows = 6;
-		int cols = 7;
+		final Connect4Rules rules;
+		final int rows;
+		final int cols;
+		final int connect;
+		private final int height1;
+		private final boolean bitboard;
+		private final BitboardLayout layout;
+		private final long[] tokens = new long[2]; // [0] = 'X' mask, [1] = 'O' mask
+		private final byte[] cells; // 0 empty, 1 'X', 2 'O', only for large boards
+		private final int[] heights;
+		private int moves;
+		private int lastRow = -1;
+		private int lastCol = -1;
+		private int legalColumns;
+		private final int[] centerOrder;
+		private final byte[] history; // 0-based column of every move, oldest first
+		private long hash;
+		private ThreatEvaluator evaluator; // created by the first getEvaluation
 
 		/**
-		 * Initialized gameboard with matrix filled with ' '
+		 * Initializes an empty standard gameboard
 		 */
 		public GameBoard() {
-			board = new char[rows][cols];
-			for (int row = 0; row < rows; row++) {
-				for (int col = 0; col < cols; col++) {
-					board[row][col] = ' ';
-				}
-			}
+			this(Connect4Rules.STANDARD);
+		}
+
+		/**
+		 * Initializes an empty gameboard for the given variant
+		 * 
+		 * @param rules Board geometry and winning run length
+		 */
+		public GameBoard(Connect4Rules rules) {
+			this.rules = rules;
+			rows = rules.getRows();
+			cols = rules.getCols();
+			connect = rules.getConnect();
+			height1 = rows + 1;
+			bitboard = rules.fitsBitboard();
+			layout = bitboard ? BitboardLayout.of(rules) : null;
+			cells = bitboard ? null : new byte[rows * cols];
+			heights = new int[cols];
+			legalColumns = (1 << cols) - 1;
+			centerOrder = new int[cols];
+			// 3, 2, 4, 1, 5, 0, 6 for 7 columns
+			for (int i = 0; i < cols; i++)
+				centerOrder[i] = cols / 2 + (1 - 2 * (i % 2)) * (i + 1) / 2;
+			history = new byte[rows * cols];
+		}
+
+		/**
+		 * Returns the rules this board is played with
+		 * 
+		 * @return board geometry and winning run length
+		 */
+		public Connect4Rules getRules() {
+			return this.rules;
 		}
 
 		/**
@@ -85,16 +144,28 @@ public class Connect4 implements Serializable {
 			return this.cols;
 		}
 
+		/**
+		 * Returns the number of tokens in a row needed to win
+		 * 
+		 * @return winning run length
+		 */
+		public int getConnect() {
+			return this.connect;
+		}
+
 		/**
 		 * Returns the character found at the row and col input
 		 * 
-		 * @param row Row of desired element
+		 * @param row Row of desired element, 0 is the top row
 		 * @param col Column of desired element
 		 * 
 		 * @return Character found at row, column of gameboard
 		 */
 		public char getElement(int row, int col) {
-			return board[row][col];
+			if (row < 0 || row >= rows || col < 0 || col >= cols)
+				throw new IllegalArgumentException();
+			int owner = ownerAt(col, rows - 1 - row);
+			return owner == 1 ? 'X' : owner == 2 ? 'O' : ' ';
 		}
 
 		/**
@@ -104,11 +175,9 @@ public class Connect4 implements Serializable {
 		 * @return True if column is not filled
 		 */
 		public boolean isValidColumn(int column) throws IllegalArgumentException {
-			if (column < 0 || column >= gb.getCols())
+			if (column < 0 || column >= cols)
 				throw new IllegalArgumentException();
-			if (gb.board[0][column] == ' ')
-				return true;
-			return false;
+			return heights[column] < rows;
 		}
 
 		/**
@@ -117,11 +186,7 @@ public class Connect4 implements Serializable {
 		 * @return true if board is full
 		 */
 		public boolean isFull() {
-			for (int i = 0; i < this.cols; i++) {
-				if (gb.getElement(0, i) == ' ')
-					return false;
-			}
-			return true;
+			return moves == rows * cols;
 		}
 
 		/**
@@ -132,25 +197,274 @@ public class Connect4 implements Serializable {
 		 * @return returns the row the token is set in, -1 if unable to do so
 		 */
 		public int setToken(int column, char c) {
-			for (int i = gb.rows - 1; i >= 0; i--) {
-				if (gb.board[i][column - 1] == ' ') {
-					gb.board[i][column - 1] = c;
-					// Connect4TextConsole.displayBoard(gb);
-					return i;
-				}
+			int col = column - 1;
+			if (col < 0 || col >= cols || heights[col] >= rows)
+				return -1;
+			return place(col, tokenIndex(c));
+		}
+
+		/**
+		 * Plays a token for the player to move, 'X' on even move counts and 'O'
+		 * on odd ones
+		 * 
+		 * @param col 0-based column to play
+		 * @return the row the token is set in, -1 if the column is full or out of
+		 *         range
+		 */
+		public int makeMove(int col) {
+			if (col < 0 || col >= cols || heights[col] >= rows)
+				return -1;
+			return place(col, moves & 1);
+		}
+
+		/**
+		 * Takes back the last token set by makeMove or setToken
+		 * 
+		 * @return 0-based column of the token taken back, -1 if the board is
+		 *         empty
+		 */
+		public int undoMove() {
+			if (moves == 0)
+				return -1;
+			int col = history[--moves];
+			int h = --heights[col];
+			int player = ownerAt(col, h) - 1;
+			if (bitboard) {
+				long bit = 1L << (col * height1 + h);
+				tokens[player] &= ~bit;
+				if (evaluator != null)
+					evaluator.undo(bit, player);
+			} else {
+				cells[col * rows + h] = 0;
+			}
+			hash ^= zobrist(col * rows + h, player);
+			legalColumns |= 1 << col;
+			if (moves == 0) {
+				lastCol = -1;
+				lastRow = -1;
+			} else {
+				lastCol = history[moves - 1];
+				lastRow = rows - heights[lastCol];
+			}
+			return col;
+		}
+
+		/**
+		 * Sets a token for player in a column known to have room, and pushes the
+		 * column on the move stack
+		 */
+		private int place(int col, int player) {
+			int h = heights[col];
+			if (bitboard) {
+				long bit = 1L << (col * height1 + h);
+				tokens[player] |= bit;
+				if (evaluator != null)
+					evaluator.play(bit, player);
+			} else {
+				cells[col * rows + h] = (byte) (player + 1);
+			}
+			hash ^= zobrist(col * rows + h, player);
+			history[moves++] = (byte) col;
+			lastCol = col;
+			lastRow = rows - ++heights[col];
+			if (lastRow == 0)
+				legalColumns &= ~(1 << col);
+			return lastRow;
+		}
+
+		/**
+		 * Random key of a player's token on a cell, computed rather than stored
+		 * (splitmix64 of the cell and player) so boards need no key tables
+		 */
+		private long zobrist(int cell, int player) {
+			long z = (2L * cell + player + 1) * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+
+		/**
+		 * Returns the Zobrist hash of the position, which depends only on the
+		 * tokens on the board and not on the order they were played in
+		 * 
+		 * @return position hash, 0 for the empty board
+		 */
+		public long getHash() {
+			return hash;
+		}
+
+		/**
+		 * Returns the 0-based column of a move from the move stack
+		 * 
+		 * @param ply index of the move, 0 for the first
+		 * @return column of the move
+		 * @throws IllegalArgumentException if ply is not below getMoveCount()
+		 */
+		public int getMove(int ply) throws IllegalArgumentException {
+			if (ply < 0 || ply >= moves)
+				throw new IllegalArgumentException("No move " + ply);
+			return history[ply];
+		}
+
+		/**
+		 * Returns the threat evaluation of the position, kept up to date by every
+		 * move and takeback once it has been asked for
+		 * 
+		 * @return score for 'X', negative if 'O' is better placed
+		 * @throws IllegalStateException if the board does not fit in 64 bits
+		 * @see ThreatEvaluator
+		 */
+		public int getEvaluation() {
+			if (!bitboard)
+				throw new IllegalStateException("Board " + rules + " has no bitboard");
+			if (evaluator == null) {
+				evaluator = new ThreatEvaluator(layout);
+				evaluator.reset(tokens[0], tokens[1]);
+			}
+			return evaluator.score();
+		}
+
+		/**
+		 * Returns the row of the last token set
+		 * 
+		 * @return row of the last move, -1 if the board is empty
+		 */
+		public int getLastRow() {
+			return lastRow;
+		}
+
+		/**
+		 * Returns the 0-based column of the last token set
+		 * 
+		 * @return column of the last move, -1 if the board is empty
+		 */
+		public int getLastColumn() {
+			return lastCol;
+		}
+
+		/**
+		 * Checks if the token at row, column completes a winning run for its owner.
+		 * The game ends on the first winning run, so only lines through the token
+		 * just set can be complete. The cost grows with the run length, not with
+		 * the size of the board.
+		 * 
+		 * @param row    row the token was set in, as returned by setToken
+		 * @param column 0-based column the token was set in
+		 * @return true if the token's owner has a winning run
+		 */
+		public boolean isWinningMove(int row, int column) {
+			char c = getElement(row, column);
+			if (c == ' ')
+				return false;
+			if (!bitboard)
+				return hasRunThrough(column, rows - 1 - row, tokenIndex(c) + 1);
+			return layout.isWinThrough(tokens[tokenIndex(c)], layout.cellBit(column, rows - 1 - row));
+		}
+
+		/**
+		 * Counts the owner's tokens on each line through col, h (h = 0 is the
+		 * bottom row) for boards kept as cells
+		 */
+		private boolean hasRunThrough(int col, int h, int owner) {
+			return count(col, h, 1, 0, owner) + count(col, h, -1, 0, owner) + 1 >= connect
+					|| count(col, h, 0, -1, owner) + 1 >= connect
+					|| count(col, h, 1, 1, owner) + count(col, h, -1, -1, owner) + 1 >= connect
+					|| count(col, h, 1, -1, owner) + count(col, h, -1, 1, owner) + 1 >= connect;
+		}
+
+		private int count(int col, int h, int dCol, int dH, int owner) {
+			int n = 0;
+			for (int c = col + dCol, r = h + dH; n < connect - 1 && c >= 0 && c < cols && r >= 0
+					&& r < heights[c]; c += dCol, r += dH) {
+				if (cells[c * rows + r] != owner)
+					break;
+				n++;
+			}
+			return n;
+		}
+
+		/**
+		 * Returns 1 for 'X', 2 for 'O' or 0 for an empty cell at col, h
+		 */
+		private int ownerAt(int col, int h) {
+			if (!bitboard)
+				return cells[col * rows + h];
+			long bit = 1L << (col * height1 + h);
+			if ((tokens[0] & bit) != 0)
+				return 1;
+			if ((tokens[1] & bit) != 0)
+				return 2;
+			return 0;
+		}
+
+		/**
+		 * Returns the bitboard of the tokens belonging to c
+		 * 
+		 * @param c 'X' or 'O'
+		 * @return mask with one bit set per token, column-major from the bottom
+		 * @throws IllegalStateException if the board does not fit in 64 bits
+		 */
+		public long getTokens(char c) {
+			if (!bitboard)
+				throw new IllegalStateException("Board " + rules + " has no bitboard");
+			return tokens[tokenIndex(c)];
+		}
+
+		/**
+		 * Returns the number of tokens played so far
+		 * 
+		 * @return number of moves made on this board
+		 */
+		public int getMoveCount() {
+			return moves;
+		}
+
+		/**
+		 * Maps a player token to its mask index
+		 */
+		private int tokenIndex(char c) {
+			if (c == 'X')
+				return 0;
+			if (c == 'O')
+				return 1;
+			throw new IllegalArgumentException("Unknown token " + c);
+		}
+
+		/**
+		 * Returns the columns that still have an open space as a bitmask
+		 * 
+		 * @return mask with bit i set if 0-based column i is not filled
+		 */
+		public int getLegalColumns() {
+			return legalColumns;
+		}
+
+		/**
+		 * Fills out with the open 0-based columns, center column first. Does not
+		 * allocate, so it can be called at every node of a search.
+		 * 
+		 * @param out array of at least getCols() elements to fill
+		 * @return number of columns written to out
+		 */
+		public int fillLegalColumns(int[] out) {
+			int n = 0;
+			for (int col : centerOrder) {
+				if ((legalColumns & (1 << col)) != 0)
+					out[n++] = col;
 			}
-			return -1;
+			return n;
 		}
 
 		/**
 		 * Helper function for computer player to get list of valid columns
 		 * 
 		 * @return List containing all valid columns
+		 * @see #getLegalColumns()
 		 */
 		public List<Integer> getValidColumns() {
 			List<Integer> list = new ArrayList<Integer>();
-			for (int i = 0; i < getCols(); i++) {
-				if (isValidColumn(i)) {
+			for (int i = 0; i < cols; i++) {
+				if ((legalColumns & (1 << i)) != 0) {
 					list.add(i);
 				}
 			}
@@ -167,6 +481,28 @@ public class Connect4 implements Serializable {
 		return this.gb;
 	}
 
+	/**
+	 * Returns the rules this game is played with
+	 * 
+	 * @return board geometry and winning run length
+	 */
+	public Connect4Rules getRules() {
+		return gb.getRules();
+	}
+
+	/**
+	 * Builds the column prompt shown to console players
+	 * 
+	 * @param cols number of columns
+	 * @return prompt listing columns 1 to cols
+	 */
+	public static String columnPrompt(int cols) {
+		StringBuilder sb = new StringBuilder("Choose column: 1-").append(cols).append('\n');
+		for (int i = 1; i <= cols; i++)
+			sb.append('[').append(i).append(']');
+		return sb.toString();
+	}
+
 	/**
 	 * Player class
 	 * 
@@ -232,8 +568,7 @@ public class Connect4 implements Serializable {
 			int input;
 			in = new Scanner(System.in);
 			do {
-				System.out.println(name + " Choose column: 1-7");
-				System.out.println("[1][2][3][4][5][6][7]");
+				System.out.println(name + " " + columnPrompt(gb.getCols()));
 				while (!in.hasNextInt()) {
 					System.out.println("Invalid input. Try again!");
 					in.next();
@@ -277,7 +612,7 @@ public class Connect4 implements Serializable {
 	}
 
 	/**
-	 * Checks game board for 4 consecutive spaces filled with player's char in
+	 * Checks game board for a winning run of spaces filled with player's char in
 	 * horizontal, vertical, or diagonal directions
 	 * 
 	 * @param p The player that just took their turn
@@ -285,41 +620,56 @@ public class Connect4 implements Serializable {
 	 * @see Player
 	 */
 	public boolean checkWinner(Player p) {
-		char tok = p.getChar();
-		if (checkHorizontal(tok) || checkVertical(tok) || checkDiagLR(tok) || checkDiagRL(tok)) {
+		if (checkWinnerServer(p)) {
 			System.out.println(" " + p.name + " won!");
 			Connect4TextConsole.displayBoard(gb);
 			return true;
 		}
 		return false;
 	}
-	
+
 	/**
-	 * Checks game board for 4 consecutive spaces filled with player's char in
-	 * horizontal, vertical, or diagonal directions for the server
+	 * Checks game board for a winning run of spaces filled with player's char in
+	 * horizontal, vertical, or diagonal directions for the server. Uses the
+	 * board's last move when it belongs to the player, otherwise scans the board.
 	 * 
 	 * @param p The player that just took their turn
 	 * @return true if the player won
 	 */
 	public boolean checkWinnerServer(Player p) {
+		int row = gb.getLastRow();
+		int column = gb.getLastColumn();
+		if (row >= 0 && gb.getElement(row, column) == p.getChar())
+			return gb.isWinningMove(row, column);
 		char tok = p.getChar();
-		if (checkHorizontal(tok) || checkVertical(tok) || checkDiagLR(tok) || checkDiagRL(tok)) {
-			return true;
-		}
-		return false;
+		return checkHorizontal(tok) || checkVertical(tok) || checkDiagLR(tok) || checkDiagRL(tok);
+	}
+
+	/**
+	 * Checks only the lines through the token the player just set
+	 * 
+	 * @param p      The player that just took their turn
+	 * @param row    The row returned by GameBoard.setToken
+	 * @param column The 0-based column the token was set in
+	 * @return true if the player won
+	 */
+	public boolean checkWinnerServer(Player p, int row, int column) {
+		if (row < 0 || gb.getElement(row, column) != p.getChar())
+			return false;
+		return gb.isWinningMove(row, column);
 	}
 
 	/**
-	 * Checks every row for 4 consecutive spaces that match the player's character.
+	 * Checks every row for a winning run of spaces that match the player's
+	 * character.
 	 * 
 	 * @param c The character to check for
-	 * @return boolean returns true if 4 consecutive spaces filled matching c
+	 * @return boolean returns true if a winning run of spaces filled matching c
 	 */
 	public boolean checkHorizontal(char c) {
 		for (int row = 0; row < gb.getRows(); row++) {
-			for (int col = 0; col < gb.getCols() - 3; col++) {
-				if (gb.getElement(row, col) == c && gb.getElement(row, col + 1) == c && gb.getElement(row, col + 2) == c
-						&& gb.getElement(row, col + 3) == c)
+			for (int col = 0; col <= gb.getCols() - gb.getConnect(); col++) {
+				if (isRun(row, col, 0, 1, c))
 					return true;
 			}
 		}
@@ -327,16 +677,16 @@ public class Connect4 implements Serializable {
 	}
 
 	/**
-	 * Checks every column for 4 consecutive spaces that param c character.
+	 * Checks every column for a winning run of spaces that match param c
+	 * character.
 	 * 
 	 * @param c The character to check for
-	 * @return boolean returns true if 4 consecutive spaces filled matching c
+	 * @return boolean returns true if a winning run of spaces filled matching c
 	 */
 	public boolean checkVertical(char c) {
 		for (int col = 0; col < gb.getCols(); col++) {
-			for (int row = 0; row < gb.getRows() - 3; row++) {
-				if (gb.getElement(row, col) == c && gb.getElement(row + 1, col) == c && gb.getElement(row + 2, col) == c
-						&& gb.getElement(row + 3, col) == c)
+			for (int row = 0; row <= gb.getRows() - gb.getConnect(); row++) {
+				if (isRun(row, col, 1, 0, c))
 					return true;
 			}
 		}
@@ -344,17 +694,16 @@ public class Connect4 implements Serializable {
 	}
 
 	/**
-	 * Checks every possible diagonal top left to right for 4 consecutive spaces
-	 * that match param c character
+	 * Checks every possible diagonal top left to right for a winning run of
+	 * spaces that match param c character
 	 * 
 	 * @param c The character to check for
-	 * @return boolean returns true if 4 consecutive spaces filled matching c
+	 * @return boolean returns true if a winning run of spaces filled matching c
 	 */
 	public boolean checkDiagLR(char c) {
-		for (int row = 0; row < gb.getRows() - 3; row++) {
-			for (int col = 0; col < gb.getCols() - 3; col++) {
-				if (gb.getElement(row, col) == c && gb.getElement(row + 1, col + 1) == c
-						&& gb.getElement(row + 2, col + 2) == c && gb.getElement(row + 3, col + 3) == c)
+		for (int row = 0; row <= gb.getRows() - gb.getConnect(); row++) {
+			for (int col = 0; col <= gb.getCols() - gb.getConnect(); col++) {
+				if (isRun(row, col, 1, 1, c))
 					return true;
 			}
 		}
@@ -362,23 +711,34 @@ public class Connect4 implements Serializable {
 	}
 
 	/**
-	 * Checks every possible diagonal top right to left for 4 consecutive spaces
-	 * that match param c character
+	 * Checks every possible diagonal top right to left for a winning run of
+	 * spaces that match param c character
 	 * 
 	 * @param c The character to check for
-	 * @return boolean returns true if 4 consecutive spaces filled matching c
+	 * @return boolean returns true if a winning run of spaces filled matching c
 	 */
 	public boolean checkDiagRL(char c) {
-		for (int row = 0; row < gb.getRows() - 3; row++) {
-			for (int col = 3; col < gb.getCols(); col++) {
-				if (gb.getElement(row, col) == c && gb.getElement(row + 1, col - 1) == c
-						&& gb.getElement(row + 2, col - 2) == c && gb.getElement(row + 3, col - 3) == c)
+		for (int row = 0; row <= gb.getRows() - gb.getConnect(); row++) {
+			for (int col = gb.getConnect() - 1; col < gb.getCols(); col++) {
+				if (isRun(row, col, 1, -1, c))
 					return true;
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Checks for a winning run of c starting at row, col and stepping by dRow,
+	 * dCol
+	 */
+	private boolean isRun(int row, int col, int dRow, int dCol, char c) {
+		for (int i = 0; i < gb.getConnect(); i++) {
+			if (gb.getElement(row + i * dRow, col + i * dCol) != c)
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Start of the Connect4 game. Players alternate turns until board is filled or
 	 * a player has 4 adjacent spaces filled with his/her character
@@ -434,7 +794,7 @@ public class Connect4 implements Serializable {
 		boolean turn = true;
 		Player p = playerX;
 
-		for (int i = 1; i <= 42; i++) {
+		for (int i = 1; i <= gb.getRows() * gb.getCols(); i++) {
 			p.takeTurn();
 
 			if (checkWinner(p)) {
@@ -36,8 +36,8 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	private Label lblTitle = new Label();
 	private int portNo = 8000;
 	private String host = "localhost";
-	private DataInputStream fromServer;
-	private DataOutputStream toServer;
+	private boolean compactProtocol = true;
+	private Connect4Wire wire;
 	private char myToken;
 	private char otherToken;
 	private boolean myTurn;
@@ -51,18 +51,21 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 
 	
 	/**
-	 *Start method for Client GUI
+	 *Start method for Client GUI. --protocol=legacy speaks the protocol of
+	 *servers from before Connect4Wire's compact protocol.
 	 */
 	@Override // Override the start method in the Connect4GUI class
 	public void start(Stage primaryStage) throws Exception {
+		compactProtocol = !"legacy".equals(getParameters().getNamed().get("protocol"));
 
 		GridPane pane = new GridPane();
 		BorderPane borderPane = new BorderPane();
 		borderPane.setCenter(pane);
 		borderPane.setBottom(lblStatus);
 
-		for (int i = 0; i < 6; i++)
-			for (int j = 0; j < 7; j++)
+		cells = new Cell[rules.getRows()][rules.getCols()];
+		for (int i = 0; i < rules.getRows(); i++)
+			for (int j = 0; j < rules.getCols(); j++)
 				pane.add(cells[i][j] = new Cell(i, j), j, i);
 		Scene scene = new Scene(borderPane, 450, 385);
 		primaryStage.setTitle("Welcome to Connect4"); // Set the stage title
@@ -163,9 +166,9 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 		initializeGame(pOpponent);
 		new Thread(() -> {
 			try {
-				toServer.writeBoolean(pOpponent);
+				wire = Connect4Wire.connect(socket, pOpponent, compactProtocol);
 
-				int player = fromServer.readInt();
+				int player = wire.receivePlayer();
 
 				if (player == PLAYER1) {
 					myToken = 'X';
@@ -177,7 +180,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 					});
 
 					// Receive startup notification from the server
-					fromServer.readInt(); // Whatever read is ignored
+					wire.receiveStart();
 
 					// The other player has joined
 					System.out.println("Player 2 has joined. I start first");
@@ -237,8 +240,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 		int input;
 			in = new Scanner(System.in);
 		do{
-			System.out.println(" Choose column: 1-7");
-			System.out.println("[1][2][3][4][5][6][7]");
+			System.out.println(" " + Connect4.columnPrompt(gb.getCols()));
 			while(!in.hasNextInt()) {
 				System.out.println("Invalid input. Try again!");
 				in.next();
@@ -268,7 +270,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	 */
 	private void receiveInfoFromServerText() throws IOException {
 		// Receive game status
-		int status = fromServer.readInt();
+		int status = wire.receiveStatus();
 
 		if (status == PLAYER1_WON) {
 			// Player 1 won, stop playing
@@ -310,9 +312,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	 */
 	private void receiveMoveText() throws IOException {
 		// Get the other player's move
-		int row = fromServer.readInt();
-		int column = fromServer.readInt();
-		//Platform.runLater(() -> cells[row][column].setToken(otherToken));
+		int column = wire.receiveColumn();
 		System.out.println("Opponent chose column: " + (column+1));
 		gb.setToken(column + 1, otherToken);
 		Connect4TextConsole.displayBoard(gb);
@@ -328,9 +328,9 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 		// Control the game on a separate thread
 		new Thread(() -> {
 			try {
-				toServer.writeBoolean(playerOpponent);
+				wire = Connect4Wire.connect(socket, playerOpponent, compactProtocol);
 				// Get notification from the server
-				int player = fromServer.readInt();
+				int player = wire.receivePlayer();
 
 				// Am I player 1 or 2?
 				if (player == PLAYER1) {
@@ -343,7 +343,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 					});
 
 					// Receive startup notification from the server
-					fromServer.readInt(); // Whatever read is ignored
+					wire.receiveStart();
 
 					// The other player has joined
 					Platform.runLater(() -> lblStatus.setText("Player 2 has joined. I start first"));
@@ -402,12 +402,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 		// Create a socket to connect to the server
 		try {
 			socket = new Socket(host, portNo);
-
-			// Create an input stream to receive data from the server
-			fromServer = new DataInputStream(socket.getInputStream());
-
-			// Create an output stream to send data to the server
-			toServer = new DataOutputStream(socket.getOutputStream());
+			// the streams are opened by the handshake, once the opponent is chosen
 		} catch (Exception ce) {
 			Platform.runLater(() -> lblStatus.setText("Unable to connect " + "to Server. Restart server and client"));
 		}
@@ -421,7 +416,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	 * @throws IOException if error receiving data
 	 */
 	private int receiveRow() throws IOException {
-		int valid = fromServer.readInt();
+		int valid = wire.receiveResult();
 		return valid;
 	}
 
@@ -443,8 +438,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	 * @throws IOException if error transmitting data to server
 	 */
 	private void sendMove() throws IOException {
-		toServer.writeInt(rowSelected); // Send the selected row
-		toServer.writeInt(colSelected); // Send the selected column
+		wire.sendMove(rowSelected, colSelected); // Send the selected row and column
 	}
 
 	/**
@@ -453,7 +447,7 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	 */
 	private void receiveInfoFromServer() throws IOException {
 		// Receive game status
-		int status = fromServer.readInt();
+		int status = wire.receiveStatus();
 
 		if (status == PLAYER1_WON) {
 			// Player 1 won, stop playing
@@ -494,11 +488,12 @@ public class Connect4Client extends Connect4GUI implements Connect4Constants {
 	 * @throws IOException exception if error receiving data
 	 */
 	private void receiveMove() throws IOException {
-		// Get the other player's move
-		int row = fromServer.readInt();
-		int column = fromServer.readInt();
-		Platform.runLater(() -> cells[row][column].setToken(otherToken));
-		Platform.runLater(() -> gb.setToken(column + 1, otherToken));
+		// Get the other player's move, which lands on the lowest empty row
+		int column = wire.receiveColumn();
+		Platform.runLater(() -> {
+			int row = gb.setToken(column + 1, otherToken);
+			cells[row][column].setToken(otherToken);
+		});
 	}
 
 	
@@ -1,23 +1,39 @@
 package core;
 
-import java.util.List;
 import java.util.Random;
 
 import core.Connect4.GameBoard;
 import core.Connect4.Player;
 import core.Connect4;
 /**
- * A Computer player for Connect4
+ * A Computer player for Connect4. Searches with a Connect4Engine, or plays a
+ * random valid column at depth 0 and on boards too large for the engine.
  * 
  * @author Abraham Gomez
- * @version 2.0
+ * @version 3.0
  * @see ui.Connect4TextConsole
  * @see core.Connect4
  * @see GameBoard 
  * @see Player
+ * @see Connect4Engine
  */
 public class Connect4ComputerPlayer extends Player {
+	/** Search depth used when none is given */
+	public static final int DEFAULT_DEPTH = 8;
+
 	private GameBoard gb;
+	private final Random random = new Random();
+	private Connect4Engine engine;
+	private ParallelSearch parallelSearch;
+	private OpeningBook openingBook;
+	private MonteCarloEngine monteCarlo;
+	private Connect4Solver solver;
+	private int solverMoves;
+	private Ponderer ponderer;
+	private long ponderMillis;
+	private long ponderNodes = Long.MAX_VALUE;
+	private int lastSearchDepth;
+	private long lastNodes;
 	
 	/**
 	 * Constructor for a computer player
@@ -26,8 +42,217 @@ public class Connect4ComputerPlayer extends Player {
 	 * @param c The computer player's token
 	 */
 	public Connect4ComputerPlayer(Connect4 connect4, char c) {
+		this(connect4, c, DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Constructor for a computer player of a given strength
+	 * 
+	 * @param connect4 The connect 4 game reference
+	 * @param c The computer player's token
+	 * @param depth Search depth in moves, 0 to play random columns
+	 */
+	public Connect4ComputerPlayer(Connect4 connect4, char c, int depth) {
 		connect4.super(c);
 		gb = connect4.getGameBoard();
+		setSearchDepth(depth);
+	}
+
+	/**
+	 * Sets the strength of the computer player
+	 * 
+	 * @param depth Search depth in moves, 0 to play random columns
+	 */
+	public void setSearchDepth(int depth) {
+		if (depth < 0)
+			throw new IllegalArgumentException("Depth must not be negative");
+		if (depth == 0 || !gb.getRules().fitsBitboard()) {
+			engine = null;
+			return;
+		}
+		if (engine == null)
+			engine = new Connect4Engine(gb.getRules());
+		engine.setMaxDepth(depth);
+	}
+
+	/**
+	 * Limits the number of positions searched per move
+	 * 
+	 * @param nodeLimit node limit, at least 1
+	 */
+	public void setNodeLimit(long nodeLimit) {
+		if (engine != null)
+			engine.setNodeLimit(nodeLimit);
+	}
+
+	/**
+	 * Gives every move a wall-clock budget. The engine deepens until the budget
+	 * or the search depth runs out and plays the best move of the last depth it
+	 * finished. A Monte Carlo engine already set gets the same budget.
+	 * 
+	 * @param millis time per move in milliseconds, 0 for no limit
+	 */
+	public void setTimeLimit(long millis) {
+		if (engine != null)
+			engine.setTimeLimit(millis);
+		if (monteCarlo != null)
+			monteCarlo.setTimeLimit(millis);
+	}
+
+	/**
+	 * Searches on several cores, for hard levels and analysis. The parallel
+	 * search may be shared by many players: each search runs with the depth,
+	 * time and node limits set on this player.
+	 * 
+	 * @param parallelSearch the parallel search to use, null to search on the
+	 *                       calling thread
+	 */
+	public void setParallelSearch(ParallelSearch parallelSearch) {
+		this.parallelSearch = parallelSearch;
+	}
+
+	/**
+	 * Plays book moves while the position is in the opening book
+	 * 
+	 * @param openingBook the book to use, null for none
+	 */
+	public void setOpeningBook(OpeningBook openingBook) {
+		this.openingBook = openingBook;
+	}
+
+	/**
+	 * Plays with Monte Carlo Tree Search instead of the alpha-beta engine, for
+	 * casual levels whose strength follows the playout count or time limit.
+	 * The tree is kept between moves, so the engine should belong to one game.
+	 * 
+	 * @param monteCarlo the engine to use, null to search with alpha-beta
+	 */
+	public void setMonteCarloEngine(MonteCarloEngine monteCarlo) {
+		this.monteCarlo = monteCarlo;
+	}
+
+	/**
+	 * Plays perfectly with an exact solver, for the expert level. The solver
+	 * may be shared by many players. Boards with other rules keep using the
+	 * engine.
+	 * 
+	 * @param solver the solver to use, null for none
+	 */
+	public void setSolver(Connect4Solver solver) {
+		setSolver(solver, 0);
+	}
+
+	/**
+	 * Plays perfectly with an exact solver once enough tokens are on the
+	 * board for it to answer quickly, and with the book or engine before
+	 * 
+	 * @param solver the solver to use, null for none
+	 * @param fromMoves tokens on the board from which the solver plays
+	 */
+	public void setSolver(Connect4Solver solver, int fromMoves) {
+		if (fromMoves < 0)
+			throw new IllegalArgumentException("Moves must not be negative");
+		this.solver = solver;
+		this.solverMoves = fromMoves;
+	}
+
+	/**
+	 * Lets the engine search the opponent's replies between startPondering and
+	 * the computer's next move, in slices on a worker pool
+	 * 
+	 * @param pool   workers to ponder on, null to stop pondering
+	 * @param limits session charged with the pondering, null to charge none
+	 */
+	public void setPondering(EngineWorkerPool pool, SearchBudget.Session limits) {
+		stopPondering();
+		ponderer = pool != null && engine != null ? new Ponderer(engine, pool, limits) : null;
+	}
+
+	/**
+	 * Limits the pondering of each of the opponent's turns
+	 * 
+	 * @param millis time per turn in milliseconds, 0 for four times the time
+	 *               per move
+	 * @param nodes  nodes per turn, at least 1
+	 */
+	public void setPonderLimits(long millis, long nodes) {
+		if (millis < 0 || nodes < 1)
+			throw new IllegalArgumentException("Ponder limits must be positive");
+		ponderMillis = millis;
+		ponderNodes = nodes;
+	}
+
+	/**
+	 * Starts pondering the opponent's replies on the current board, if
+	 * pondering is on and the computer plays with the alpha-beta engine
+	 */
+	public void startPondering() {
+		if (ponderer == null || engine == null || engine.isCancelled() || monteCarlo != null
+				|| solver != null && gb.getMoveCount() + 1 >= solverMoves || parallelSearch != null)
+			return;
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		int moves = gb.getMoveCount();
+		long slice = engine.getTimeLimit() > 0 ? engine.getTimeLimit() : 50;
+		ponderer.start(moves % 2 == 0 ? x : o, x | o, moves, slice, ponderMillis > 0 ? ponderMillis : 4 * slice,
+				ponderNodes);
+	}
+
+	/**
+	 * Stops pondering, for example when the game ends
+	 */
+	public void stopPondering() {
+		if (ponderer != null)
+			ponderer.stop();
+	}
+
+	/**
+	 * Cancels the running search and every later one, from any thread, for
+	 * example when the session ends or the server shuts down. Cancelled
+	 * searches answer at once with what they found so far, so the player still
+	 * returns a legal column.
+	 */
+	public void cancel() {
+		if (engine != null)
+			engine.cancel();
+		if (monteCarlo != null)
+			monteCarlo.cancel();
+		stopPondering();
+	}
+
+	/**
+	 * Scores every column of the current board with the engine, for hints and
+	 * evaluation bars
+	 * 
+	 * @param listener receives the scores after every depth, may be null
+	 * @return score of each 0-based column for the player to move,
+	 *         Connect4Engine.INVALID for full columns, null if the player has
+	 *         no engine
+	 */
+	public int[] analyze(Connect4Engine.AnalysisListener listener) {
+		if (engine == null)
+			return null;
+		stopPondering();
+		return engine.analyze(gb, listener);
+	}
+
+	/**
+	 * Returns the work done by the last chooseColumn: search nodes, or
+	 * playouts for Monte Carlo Tree Search
+	 * 
+	 * @return nodes searched, 0 for book, pondered and random moves
+	 */
+	public long getLastNodes() {
+		return lastNodes;
+	}
+
+	/**
+	 * Returns the search engine
+	 * 
+	 * @return the engine, null if the player picks random columns
+	 */
+	public Connect4Engine getEngine() {
+		return engine;
 	}
 	
 	/**
@@ -36,54 +261,104 @@ public class Connect4ComputerPlayer extends Player {
 	 */
 	@Override
 	public void takeTurn() {
-		int randColumn;
+		int column;
 		try {
-			randColumn = getRandomColumn();
-			for(int i = gb.rows -1; i >=0; i--) {
-				if(gb.board[i][randColumn] == ' ') {
-					gb.board[i][randColumn] = this.token;
-					break;
-				}
-			}
-			System.out.println("Computer Player chooses column " + (randColumn+1));
+			column = chooseColumn();
+			gb.setToken(column + 1, this.token);
+			System.out.println("Computer Player chooses column " + (column+1));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Returns the column from getRandomColumn()
+	 * Returns the column from chooseColumn()
 	 * 
-	 * @return the random column or -1 if unable to do so
+	 * @return the chosen column or -1 if unable to do so
 	 */
 	@Override
 	public int takeTurnGUI() {
-		int randColumn;
+		int column;
 		try {
-			randColumn = getRandomColumn();
-			return randColumn;
+			column = chooseColumn();
+			return column;
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
 		return -1;
 	
 	}
+
+	/**
+	 * Chooses the computer's column, from the opening book when the position is
+	 * in it, otherwise searching a copy of the position when an engine is set.
+	 * A Monte Carlo engine takes precedence over both, then a solver once
+	 * the board holds the tokens it was set to play from.
+	 * 
+	 * @return 0-based column to play
+	 * @throws Exception if there is no valid column
+	 */
+	public int chooseColumn() throws Exception {
+		stopPondering();
+		lastNodes = 0;
+		if (monteCarlo != null) {
+			int column = monteCarlo.bestMove(gb);
+			lastNodes = monteCarlo.getPlayouts();
+			if (column < 0)
+				throw new Exception("No valid column");
+			return column;
+		}
+		if (solver != null && gb.getMoveCount() >= solverMoves && solver.getRules().equals(gb.getRules())) {
+			int column = solver.bestMove(gb);
+			lastNodes = solver.getNodes();
+			if (column < 0)
+				throw new Exception("No valid column");
+			return column;
+		}
+		if (engine == null)
+			return getRandomColumn();
+		if (openingBook != null) {
+			int column = openingBook.lookup(gb);
+			if (column >= 0)
+				return column;
+		}
+		if (ponderer != null && parallelSearch == null) {
+			// answer at once if the reply was pondered as deep as a search would go
+			int depth = lastSearchDepth > 0 ? Math.min(lastSearchDepth, engine.getMaxDepth()) : engine.getMaxDepth();
+			long x = gb.getTokens('X');
+			long o = gb.getTokens('O');
+			int column = ponderer.ponderedMove(x | o, Math.min(depth, gb.getRules().getCells() - gb.getMoveCount()));
+			if (column >= 0)
+				return column;
+		}
+		int column;
+		if (parallelSearch != null) {
+			column = parallelSearch.bestMove(gb, engine.getMaxDepth(), engine.getTimeLimit(), engine.getNodeLimit());
+			lastNodes = parallelSearch.getNodes();
+		} else {
+			column = engine.bestMove(gb);
+			lastSearchDepth = engine.getCompletedDepth();
+			lastNodes = engine.getNodes();
+		}
+		if (column < 0)
+			throw new Exception("No valid column");
+		return column;
+	}
 	
 	/**
-	 * Gets the list of valid columns of the game and returns
-	 * a randomly chosen column from the list
+	 * Gets the mask of valid columns of the game and returns
+	 * a randomly chosen column from the mask
 	 * 
-	 * @return randomly chosen column from list of valid columns
-	 * @throws Exception from creating random column
+	 * @return randomly chosen column from the valid columns
+	 * @throws Exception if there is no valid column
 	 */
 	public int getRandomColumn() throws Exception {
-		List<Integer> validColumns = gb.getValidColumns();
-		try {
-			Random r = new Random();
-			return validColumns.get(r.nextInt(validColumns.size()));
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new Exception();
-		}
+		int legal = gb.getLegalColumns();
+		if (legal == 0)
+			throw new Exception("No valid column");
+		// drop a random number of low set bits, then take the lowest remaining
+		for (int skip = random.nextInt(Integer.bitCount(legal)); skip > 0; skip--)
+			legal &= legal - 1;
+		return Integer.numberOfTrailingZeros(legal);
 	}
 }
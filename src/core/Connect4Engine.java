@@ -0,0 +1,784 @@
+package core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Negamax search with alpha-beta pruning for the computer player. The engine
+ * copies the position out of the GameBoard into two masks and never changes
+ * the board it was given.
+ * <p>
+ * bestMove deepens one move at a time until the depth, node or time limit is
+ * reached and answers with the best move of the last finished depth. Moves
+ * are tried hash move first, then center first; at the root the hash move is
+ * the best move of the previous depth. Leaves are scored by a ThreatEvaluator
+ * that follows the moves of the search.
+ * <p>
+ * With setKillerHistory the moves inside the tree are tried hash move, then
+ * the two killers of the ply (the last moves that cut off at the same
+ * distance from the root), then the rest by history (how deep the cutoffs
+ * the square caused were). main compares the nodes both orderings need.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4ComputerPlayer
+ * @see BitboardLayout
+ */
+public class Connect4Engine {
+	/** Score of a win on the current move, reduced by one per move played */
+	public static final int WIN = 1000000;
+	/** Scores above this are forced wins, below the negation forced losses */
+	public static final int WIN_THRESHOLD = WIN - 1000;
+	private static final int INFINITY = WIN + 1;
+	/** Transposition table size used when none is given, 512 KB */
+	public static final int DEFAULT_TABLE_BITS = 14;
+	/** Score of a column that cannot be played */
+	public static final int INVALID = Integer.MIN_VALUE;
+	/** Half width of the window around a column's previous score */
+	private static final int ASPIRATION = 32;
+	/** History score at which every score of a player is halved */
+	private static final int HISTORY_MAX = 1 << 24;
+
+	/**
+	 * Receives the column scores of an analysis each time a depth finishes
+	 */
+	public interface AnalysisListener {
+		/**
+		 * Called on the searching thread after every finished depth
+		 *
+		 * @param depth  depth just finished
+		 * @param scores score of each 0-based column for the player to move,
+		 *               INVALID for full columns; the array is the caller's
+		 * @param best   best column at this depth
+		 */
+		void depthCompleted(int depth, int[] scores, int best);
+	}
+
+	private final BitboardLayout layout;
+	private final int cells;
+	private final int[][] moveBuffer;
+	private final ThreatEvaluator evaluator;
+	private final int[][] killers;
+	private final int[][] history;
+	private TranspositionTable tt;
+	private boolean killerHistory;
+	private int maxDepth = 8;
+	private long nodeLimit = 500000;
+	private long timeLimit;
+	private volatile boolean timed;
+	private volatile long deadline;
+	private volatile boolean cancelled;
+	private long nodes;
+	private boolean aborted;
+	private int lastScore;
+	private int completedDepth;
+
+	/**
+	 * Creates an engine for the rules
+	 *
+	 * @param rules Board geometry and winning run length
+	 * @throws IllegalArgumentException if the board does not fit in 64 bits
+	 */
+	public Connect4Engine(Connect4Rules rules) throws IllegalArgumentException {
+		layout = BitboardLayout.of(rules);
+		cells = rules.getCells();
+		moveBuffer = new int[cells + 1][rules.getCols()];
+		evaluator = new ThreatEvaluator(layout);
+		killers = new int[cells + 1][2];
+		history = new int[2][64];
+		tt = new TranspositionTable(DEFAULT_TABLE_BITS);
+		clearOrdering();
+	}
+
+	/**
+	 * Returns the transposition table used by the search
+	 *
+	 * @return transposition table
+	 */
+	public TranspositionTable getTranspositionTable() {
+		return tt;
+	}
+
+	/**
+	 * Replaces the transposition table, for example with a larger one
+	 *
+	 * @param tt transposition table to use
+	 */
+	public void setTranspositionTable(TranspositionTable tt) {
+		if (tt == null)
+			throw new IllegalArgumentException();
+		this.tt = tt;
+	}
+
+	/**
+	 * Returns the maximum search depth in moves
+	 *
+	 * @return maximum depth
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Sets the maximum search depth in moves
+	 *
+	 * @param maxDepth depth of at least 1
+	 */
+	public void setMaxDepth(int maxDepth) {
+		if (maxDepth < 1)
+			throw new IllegalArgumentException("Depth must be at least 1");
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Returns the number of nodes a search may visit
+	 *
+	 * @return node limit
+	 */
+	public long getNodeLimit() {
+		return nodeLimit;
+	}
+
+	/**
+	 * Sets the number of nodes a search may visit before it stops and answers
+	 * with the best move found so far
+	 *
+	 * @param nodeLimit node limit, at least 1
+	 */
+	public void setNodeLimit(long nodeLimit) {
+		if (nodeLimit < 1)
+			throw new IllegalArgumentException("Node limit must be at least 1");
+		this.nodeLimit = nodeLimit;
+	}
+
+	/**
+	 * Returns the wall-clock budget per search
+	 *
+	 * @return time limit in milliseconds, 0 if searches are not timed
+	 */
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+	/**
+	 * Sets the wall-clock budget per search. bestMove answers with the best move
+	 * of the last depth it finished in time.
+	 *
+	 * @param millis time limit in milliseconds, 0 for no limit
+	 */
+	public void setTimeLimit(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Time limit must not be negative");
+		this.timeLimit = millis;
+	}
+
+	/**
+	 * Checks if moves inside the tree are ordered by killers and history
+	 *
+	 * @return true if killers and history are used
+	 */
+	public boolean isKillerHistory() {
+		return killerHistory;
+	}
+
+	/**
+	 * Orders moves inside the tree by killers and history after the hash move,
+	 * rather than center first. Off by default: on the positions of main it
+	 * saves nodes up to depth 12 but costs nodes at depth 14.
+	 *
+	 * @param killerHistory true to use killers and history
+	 */
+	public void setKillerHistory(boolean killerHistory) {
+		this.killerHistory = killerHistory;
+	}
+
+	/**
+	 * Returns the depth the last search finished
+	 *
+	 * @return completed depth, 0 if not even depth 1 finished
+	 */
+	public int getCompletedDepth() {
+		return completedDepth;
+	}
+
+	/**
+	 * Returns the number of nodes visited by the last search
+	 *
+	 * @return node count
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the score of the move chosen by the last search, from the point of
+	 * view of the player to move
+	 *
+	 * @return score of the last best move
+	 */
+	public int getLastScore() {
+		return lastScore;
+	}
+
+	/**
+	 * Returns the layout the engine searches on
+	 *
+	 * @return bitboard layout
+	 */
+	public BitboardLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Chooses a column for the player to move on the board. 'X' moves first.
+	 *
+	 * @param gb The board to search, left unchanged
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(GameBoard gb) {
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		int moves = gb.getMoveCount();
+		return bestMove(moves % 2 == 0 ? x : o, x | o, moves);
+	}
+
+	/**
+	 * Chooses a column for the player to move in a shared position
+	 *
+	 * @param position the position, which must have this engine's rules
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(Position position) {
+		return bestMove(position.getCurrent(), position.getMask(), position.getMoveCount());
+	}
+
+	/**
+	 * Chooses a column for the player to move
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param moves   number of tokens on the board
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(long current, long mask, int moves) {
+		startSearch(current, mask, moves);
+		completedDepth = 0;
+		long possible = layout.possible(mask);
+		if (possible == 0)
+			return -1;
+		long wins = layout.winningMoves(current, mask);
+		if (wins != 0) {
+			lastScore = WIN - (moves + 1);
+			return layout.columnOf(wins & -wins);
+		}
+
+		int[] order = moveBuffer[0];
+		int best = -1;
+		for (int depth = 1; depth <= Math.min(maxDepth, cells - moves); depth++) {
+			int n = orderMoves(possible, order, best);
+			int iterationBest = order[0];
+			int iterationScore = -INFINITY;
+			int alpha = -INFINITY;
+			for (int i = 0; i < n; i++) {
+				long bit = possible & layout.columnMask(order[i]);
+				evaluator.play(bit, moves & 1);
+				int score = -negamax(mask ^ current, mask | bit, moves + 1, depth - 1, 1, -INFINITY, -alpha);
+				evaluator.undo(bit, moves & 1);
+				if (aborted)
+					break;
+				if (score > iterationScore) {
+					iterationScore = score;
+					iterationBest = order[i];
+				}
+				alpha = Math.max(alpha, score);
+			}
+			if (aborted)
+				break;
+			best = iterationBest;
+			lastScore = iterationScore;
+			completedDepth = depth;
+			// a proven win or loss does not change with more depth
+			if (iterationScore > WIN_THRESHOLD || iterationScore < -WIN_THRESHOLD)
+				break;
+		}
+		if (best < 0) {
+			best = firstColumn(possible);
+			lastScore = 0;
+		}
+		return best;
+	}
+
+	/**
+	 * Scores every column of the position on the board
+	 *
+	 * @param gb       The board to analyze, left unchanged
+	 * @param listener receives the scores after every depth, may be null
+	 * @return score of each 0-based column for the player to move, INVALID
+	 *         for full columns
+	 */
+	public int[] analyze(GameBoard gb, AnalysisListener listener) {
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		int moves = gb.getMoveCount();
+		return analyze(moves % 2 == 0 ? x : o, x | o, moves, listener);
+	}
+
+	/**
+	 * Scores every column of a position in one iterative deepening search.
+	 * Each root move gets a full window so its score is exact rather than a
+	 * bound, while the transposition table carries the work of one root move
+	 * and one depth over to the next. The limits are the same as for
+	 * bestMove; the scores of the last finished depth are returned. Depth 1
+	 * only scores the position after each move, and always finishes, so every
+	 * open column has a score even when the limits stop the search at once.
+	 *
+	 * @param current  tokens of the player to move
+	 * @param mask     all tokens on the board
+	 * @param moves    number of tokens on the board
+	 * @param listener receives the scores after every depth, may be null
+	 * @return score of each 0-based column for the player to move, INVALID
+	 *         for full columns
+	 */
+	public int[] analyze(long current, long mask, int moves, AnalysisListener listener) {
+		startSearch(current, mask, moves);
+		completedDepth = 0;
+		int[] scores = new int[layout.getRules().getCols()];
+		Arrays.fill(scores, INVALID);
+		long possible = layout.possible(mask);
+		if (possible == 0)
+			return scores;
+		// immediate wins are exact at any depth
+		long wins = layout.winningMoves(current, mask);
+		for (long w = wins; w != 0; w &= w - 1)
+			scores[layout.columnOf(w & -w)] = WIN - (moves + 1);
+
+		int[] order = moveBuffer[0];
+		int best = wins != 0 ? layout.columnOf(wins & -wins) : -1;
+		boolean proven = false;
+		for (int depth = 1; depth <= Math.min(maxDepth, cells - moves) && !proven; depth++) {
+			int[] iteration = scores.clone();
+			int n = orderMoves(possible & ~wins, order, best);
+			for (int i = 0; i < n && !aborted; i++) {
+				long bit = possible & layout.columnMask(order[i]);
+				evaluator.play(bit, moves & 1);
+				int score;
+				if (depth == 1) {
+					nodes++;
+					score = -leaf(mask ^ current, mask | bit, moves + 1);
+				} else {
+					score = aspirate(mask ^ current, mask | bit, moves + 1, depth - 1, scores[order[i]]);
+				}
+				evaluator.undo(bit, moves & 1);
+				iteration[order[i]] = score;
+			}
+			if (aborted)
+				break;
+			scores = iteration;
+			completedDepth = depth;
+			proven = true;
+			for (int col : layout.centerOrder()) {
+				if (scores[col] == INVALID)
+					continue;
+				if (best < 0 || scores[col] > scores[best])
+					best = col;
+				proven &= scores[col] > WIN_THRESHOLD || scores[col] < -WIN_THRESHOLD;
+			}
+			lastScore = scores[best];
+			if (listener != null)
+				listener.depthCompleted(depth, scores.clone(), best);
+		}
+		return scores;
+	}
+
+	/**
+	 * Scores a root move exactly, first in a narrow window around its score at
+	 * the previous depth and again with a full window if it falls outside
+	 *
+	 * @return score of the move for the player who made it
+	 */
+	private int aspirate(long current, long mask, int moves, int depth, int previous) {
+		if (previous != INVALID && previous < WIN_THRESHOLD && previous > -WIN_THRESHOLD) {
+			int alpha = previous - ASPIRATION;
+			int beta = previous + ASPIRATION;
+			int score = -negamax(current, mask, moves, depth, 1, -beta, -alpha);
+			if (aborted || (score > alpha && score < beta))
+				return score;
+		}
+		return -negamax(current, mask, moves, depth, 1, -INFINITY, INFINITY);
+	}
+
+	/**
+	 * Scores one root move with a full window, independent of the other root
+	 * moves. Used to split a search across threads.
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param moves   number of tokens on the board
+	 * @param col     0-based column to play
+	 * @return score of the move for the player to move, meaningless if the
+	 *         search was aborted
+	 * @throws IllegalArgumentException if the column is full
+	 */
+	public int scoreMove(long current, long mask, int moves, int col) throws IllegalArgumentException {
+		startSearch(current, mask, moves);
+		long bit = layout.moveBit(mask, col);
+		if (bit == 0)
+			throw new IllegalArgumentException("Column " + col + " is full");
+		if (layout.isWin(current | bit))
+			return WIN - (moves + 1);
+		evaluator.play(bit, moves & 1);
+		int score = -negamax(mask ^ current, mask | bit, moves + 1, maxDepth - 1, 1, -INFINITY, INFINITY);
+		evaluator.undo(bit, moves & 1);
+		return score;
+	}
+
+	/**
+	 * Scores one root move to a depth within a window, as one step of a search
+	 * split across threads. The transposition table is not moved to a new
+	 * search, so the engines of one split search can share a table and every
+	 * root move and depth finds the work of the others.
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param moves   number of tokens on the board
+	 * @param col     0-based column to play
+	 * @param depth   depth in moves, counting the root move
+	 * @param alpha   lower bound of the window, for the player to move
+	 * @param beta    upper bound of the window
+	 * @return score of the move for the player to move, at most alpha if it
+	 *         is no better and at least beta if it is better than the window;
+	 *         meaningless if the search was aborted
+	 * @throws IllegalArgumentException if the column is full
+	 */
+	public int scoreMove(long current, long mask, int moves, int col, int depth, int alpha, int beta)
+			throws IllegalArgumentException {
+		prepare(current, mask, moves);
+		long bit = layout.moveBit(mask, col);
+		if (bit == 0)
+			throw new IllegalArgumentException("Column " + col + " is full");
+		if (layout.isWin(current | bit))
+			return WIN - (moves + 1);
+		evaluator.play(bit, moves & 1);
+		int score = -negamax(mask ^ current, mask | bit, moves + 1, depth - 1, 1, -beta, -alpha);
+		evaluator.undo(bit, moves & 1);
+		return score;
+	}
+
+	/**
+	 * Ends the running search within the next 1024 nodes, as if its time limit
+	 * had run out. May be called from another thread; a search started after
+	 * the call is not affected.
+	 */
+	public void stop() {
+		deadline = System.nanoTime();
+		timed = true;
+	}
+
+	/**
+	 * Cancels the running search and every later one until resume is called.
+	 * Cancelled searches end within 1024 nodes and answer like a search whose
+	 * time ran out. May be called from another thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Lets searches run again after cancel
+	 */
+	public void resume() {
+		cancelled = false;
+	}
+
+	/**
+	 * Checks if searches are cancelled
+	 *
+	 * @return true between cancel and resume
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Checks if the last search stopped at the node limit
+	 *
+	 * @return true if the last search was cut short
+	 */
+	public boolean wasAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Scores the position for the player to move
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param moves   number of tokens on the board
+	 * @param depth   remaining depth in moves
+	 * @param ply     distance from the root, indexes the move buffer
+	 * @param alpha   lower bound
+	 * @param beta    upper bound
+	 * @return score of the position, WIN - moves for a win
+	 */
+	private int negamax(long current, long mask, int moves, int depth, int ply, int alpha, int beta) {
+		if (++nodes >= nodeLimit
+				|| ((nodes & 1023) == 0 && (cancelled || timed && System.nanoTime() - deadline >= 0)))
+			aborted = true;
+		if (aborted)
+			return 0;
+		if (depth == 0 || moves + 1 >= cells || layout.winningMoves(current, mask) != 0)
+			return leaf(current, mask, moves);
+
+		long key = TranspositionTable.key(current, mask);
+		long entry = tt.probe(key);
+		int hashMove = entry != 0 ? TranspositionTable.move(entry) : -1;
+		if (entry != 0 && TranspositionTable.depth(entry) >= depth) {
+			int score = TranspositionTable.score(entry);
+			int bound = TranspositionTable.bound(entry);
+			if (bound == TranspositionTable.EXACT || (bound == TranspositionTable.LOWER && score >= beta)
+					|| (bound == TranspositionTable.UPPER && score <= alpha))
+				return score;
+		}
+
+		int alphaOrig = alpha;
+		long possible = layout.possible(mask);
+		int[] order = moveBuffer[ply];
+		int n = killerHistory ? orderMoves(possible, order, hashMove, ply, moves & 1)
+				: orderMoves(possible, order, hashMove);
+		int best = -INFINITY;
+		int bestMove = -1;
+		for (int i = 0; i < n; i++) {
+			long bit = possible & layout.columnMask(order[i]);
+			evaluator.play(bit, moves & 1);
+			int score = -negamax(mask ^ current, mask | bit, moves + 1, depth - 1, ply + 1, -beta, -alpha);
+			evaluator.undo(bit, moves & 1);
+			if (aborted)
+				return 0;
+			if (score > best) {
+				best = score;
+				bestMove = order[i];
+				if (score > alpha) {
+					alpha = score;
+					if (alpha >= beta) {
+						if (killerHistory)
+							cutoff(ply, moves & 1, order[i], bit, depth);
+						break;
+					}
+				}
+			}
+		}
+		int bound = best <= alphaOrig ? TranspositionTable.UPPER
+				: best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+		tt.store(key, best, depth, bound, bestMove);
+		return best;
+	}
+
+	/**
+	 * Scores a position without searching: a full board is a draw, a player
+	 * who can win at once wins, a board with one cell left is a draw, and
+	 * anything else is left to the evaluator
+	 *
+	 * @return score of the position for the player to move
+	 */
+	private int leaf(long current, long mask, int moves) {
+		if (moves == cells)
+			return 0;
+		if (layout.winningMoves(current, mask) != 0)
+			return WIN - (moves + 1);
+		if (moves + 1 == cells)
+			return 0;
+		return (moves & 1) == 0 ? evaluator.score() : -evaluator.score();
+	}
+
+	/**
+	 * Resets the counters, limits and evaluator before a search and starts a
+	 * new search in the transposition table
+	 */
+	private void startSearch(long current, long mask, int moves) {
+		prepare(current, mask, moves);
+		tt.newSearch();
+		clearOrdering();
+	}
+
+	/**
+	 * Forgets the killers and history of earlier searches
+	 */
+	private void clearOrdering() {
+		for (int[] k : killers)
+			Arrays.fill(k, -1);
+		for (int[] h : history)
+			Arrays.fill(h, 0);
+	}
+
+	/**
+	 * Resets the counters, limits and evaluator
+	 */
+	private void prepare(long current, long mask, int moves) {
+		long other = mask ^ current;
+		if ((moves & 1) == 0)
+			evaluator.reset(current, other);
+		else
+			evaluator.reset(other, current);
+		nodes = 0;
+		aborted = false;
+		timed = timeLimit > 0;
+		deadline = System.nanoTime() + timeLimit * 1000000L;
+	}
+
+	/**
+	 * Writes the open columns of possible into order: the hash move, then the
+	 * other columns center first
+	 *
+	 * @return number of columns written
+	 */
+	private int orderMoves(long possible, int[] order, int hashMove) {
+		int n = 0;
+		if (hashMove >= 0 && (possible & layout.columnMask(hashMove)) != 0)
+			order[n++] = hashMove;
+		for (int col : layout.centerOrder()) {
+			if (col != hashMove && (possible & layout.columnMask(col)) != 0)
+				order[n++] = col;
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the open columns of possible into order: the hash move, the
+	 * killers of the ply, then the other columns by the history of the
+	 * player to move, center first among equal scores
+	 *
+	 * @return number of columns written
+	 */
+	private int orderMoves(long possible, int[] order, int hashMove, int ply, int side) {
+		int n = 0;
+		if (hashMove >= 0 && (possible & layout.columnMask(hashMove)) != 0)
+			order[n++] = hashMove;
+		for (int killer : killers[ply]) {
+			if (killer >= 0 && (possible & layout.columnMask(killer)) != 0 && indexOf(order, n, killer) < 0)
+				order[n++] = killer;
+		}
+		int sorted = n;
+		int[] h = history[side];
+		for (int col : layout.centerOrder()) {
+			long bit = possible & layout.columnMask(col);
+			if (bit == 0 || indexOf(order, sorted, col) >= 0)
+				continue;
+			int score = h[Long.numberOfTrailingZeros(bit)];
+			int j = n++;
+			// insertion sort, keeping center first among equal scores
+			for (; j > sorted && h[Long.numberOfTrailingZeros(possible & layout.columnMask(order[j - 1]))] < score; j--)
+				order[j] = order[j - 1];
+			order[j] = col;
+		}
+		return n;
+	}
+
+	private static int indexOf(int[] order, int n, int col) {
+		for (int i = 0; i < n; i++) {
+			if (order[i] == col)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remembers a move that cut off: it becomes the first killer of the ply,
+	 * and its square's history grows with the square of the depth
+	 */
+	private void cutoff(int ply, int side, int col, long bit, int depth) {
+		int[] k = killers[ply];
+		if (k[0] != col) {
+			k[1] = k[0];
+			k[0] = col;
+		}
+		int[] h = history[side];
+		int square = Long.numberOfTrailingZeros(bit);
+		h[square] += depth * depth;
+		if (h[square] > HISTORY_MAX) {
+			for (int i = 0; i < h.length; i++)
+				h[i] >>= 1;
+		}
+	}
+
+	/**
+	 * Returns the most central open column
+	 */
+	private int firstColumn(long possible) {
+		for (int col : layout.centerOrder()) {
+			if ((possible & layout.columnMask(col)) != 0)
+				return col;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the default move order with killers and history: the same
+	 * random positions are searched to a fixed depth both ways, and the nodes,
+	 * time and moves chosen are printed for each
+	 *
+	 * @param args optional --depth=N (default 12) and --positions=N (default
+	 *             40)
+	 */
+	public static void main(String[] args) {
+		int depth = 12;
+		int count = 40;
+		for (String arg : args) {
+			if (arg.startsWith("--depth="))
+				depth = Integer.parseInt(arg.substring(8));
+			else if (arg.startsWith("--positions="))
+				count = Integer.parseInt(arg.substring(12));
+			else
+				throw new IllegalArgumentException("Unknown argument " + arg);
+		}
+		BitboardLayout layout = BitboardLayout.of(Connect4Rules.STANDARD);
+		Random random = new Random(1);
+		long[][] positions = new long[count][];
+		for (int p = 0; p < count; p++) {
+			// 4 to 15 random moves that do not end the game
+			long current = 0;
+			long mask = 0;
+			int moves = 0;
+			for (int target = 4 + random.nextInt(12); moves < target;) {
+				int col = random.nextInt(layout.getRules().getCols());
+				long bit = layout.moveBit(mask, col);
+				if (bit == 0 || layout.isWin(current | bit))
+					continue;
+				// the opponent, who has not got the new token, is to move
+				current = mask ^ current;
+				mask |= bit;
+				moves++;
+			}
+			positions[p] = new long[] { current, mask, moves };
+		}
+		String[] names = { "hash, center", "killers, history" };
+		String[] chosen = new String[2];
+		for (int pass = 0; pass < 2; pass++) {
+			// the first pass warms up the compiler
+			for (int k = 0; k < 2; k++) {
+				Connect4Engine engine = new Connect4Engine(Connect4Rules.STANDARD);
+				engine.setMaxDepth(depth);
+				engine.setNodeLimit(Long.MAX_VALUE);
+				engine.setKillerHistory(k == 1);
+				StringBuilder moves = new StringBuilder();
+				long nodes = 0;
+				long start = System.nanoTime();
+				for (long[] position : positions) {
+					moves.append(engine.bestMove(position[0], position[1], (int) position[2]) + 1);
+					nodes += engine.getNodes();
+				}
+				long ms = (System.nanoTime() - start) / 1000000;
+				chosen[k] = moves.toString();
+				if (pass == 1)
+					System.out.printf("%-16s  %,12d nodes  %6d ms%n", names[k], nodes, ms);
+			}
+		}
+		int same = 0;
+		for (int p = 0; p < count; p++) {
+			if (chosen[0].charAt(p) == chosen[1].charAt(p))
+				same++;
+		}
+		System.out.printf("depth %d, %d positions, same move in %d%n", depth, count, same);
+	}
+}
@@ -0,0 +1,765 @@
+package core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.Connect4.Connect4Constants;
+import core.Connect4.GameBoard;
+
+/**
+ * Non-blocking Connect4 server. A few event loop threads, each with its own
+ * Selector, serve every connection, and each game is a state machine driven
+ * by the bytes that arrive, so threads do not grow with the number of
+ * players. Both protocols of Connect4Wire are spoken, told apart by the
+ * client's first byte as Connect4Server does: the legacy protocol of 4 byte
+ * ints, and the compact protocol of one byte per message after the HELLO
+ * handshake. The messages are the same in both: the game asked for, PLAYER1
+ * or PLAYER2, the start notification, then a move per turn, answered with
+ * the row set or a refusal and followed by a status and the opponent's move.
+ * <p>
+ * A game is run by the event loop of its first player; a second player is
+ * handed over to that loop when the two are paired. Computer moves are
+ * searched on an EngineWorkerPool with one engine per worker, from an
+ * immutable Position, and come back to the game's loop when done.
+ * <p>
+ * Joins and sessions are logged to a ServerLog, like Connect4Server.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ * @see EngineWorkerPool
+ */
+public class Connect4NioServer implements Connect4Constants {
+	private static final int HANDSHAKE = 0;
+	private static final int WAITING = 1;
+	private static final int PLAYING = 2;
+	private static final int CLOSING = 3;
+
+	private final Connect4Rules rules;
+	private final long moveMillis;
+	private final EventLoop[] loops;
+	private final ServerSocketChannel server;
+	private final EngineWorkerPool enginePool;
+	private final ServerLog serverLog;
+	private final SearchBudget searchBudget;
+	private final OpeningBook openingBook = OpeningBook.openDefault();
+	private final ThreadLocal<Connect4Engine> engines;
+	private final Object lobby = new Object();
+	private Connection waiting;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger activeGames = new AtomicInteger();
+	private final AtomicLong games = new AtomicLong();
+	private final AtomicLong quickMoves = new AtomicLong();
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a server for standard games on a port, logging to a buffer of
+	 * the default size
+	 *
+	 * @param port       port to listen on
+	 * @param threads    event loop threads
+	 * @param moveMillis the computer's time budget per move in milliseconds
+	 * @throws IOException if the port cannot be opened
+	 */
+	public Connect4NioServer(int port, int threads, long moveMillis) throws IOException {
+		this(port, threads, moveMillis, Connect4Rules.STANDARD, new EngineWorkerPool(),
+				new ServerLog(ServerLog.DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Creates a server
+	 *
+	 * @param port       port to listen on
+	 * @param threads    event loop threads
+	 * @param moveMillis the computer's time budget per move in milliseconds
+	 * @param rules      board geometry and winning run length, must fit the
+	 *                   engine
+	 * @param enginePool workers that search the computer's moves
+	 * @param serverLog  log of joins and sessions
+	 * @throws IOException              if the port cannot be opened
+	 * @throws IllegalArgumentException if threads or moveMillis is below 1
+	 */
+	public Connect4NioServer(int port, int threads, long moveMillis, Connect4Rules rules,
+			EngineWorkerPool enginePool, ServerLog serverLog) throws IOException, IllegalArgumentException {
+		if (threads < 1 || moveMillis < 1)
+			throw new IllegalArgumentException("Need a thread and a positive move time");
+		this.rules = rules;
+		this.serverLog = serverLog;
+		this.moveMillis = moveMillis;
+		this.enginePool = enginePool;
+		searchBudget = new SearchBudget(enginePool);
+		engines = ThreadLocal.withInitial(() -> {
+			Connect4Engine engine = new Connect4Engine(rules);
+			engine.setMaxDepth(rules.getCells());
+			engine.setNodeLimit(Long.MAX_VALUE);
+			return engine;
+		});
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++)
+			loops[i] = new EventLoop(i);
+		server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop loop : loops)
+			loop.thread.start();
+		log("Server started at socket " + port + " with " + threads + " event loops");
+	}
+
+	/**
+	 * Adds a dated line to the server log
+	 */
+	private void log(String message) {
+		serverLog.log(new Date() + ": " + message);
+	}
+
+	/**
+	 * Returns the log of joins and sessions
+	 *
+	 * @return the server log
+	 */
+	public ServerLog getLog() {
+		return serverLog;
+	}
+
+	/**
+	 * One selector and the thread that runs it. Other threads hand work to the
+	 * loop through execute.
+	 */
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final Thread thread;
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "nio-" + index);
+		}
+
+		/**
+		 * Runs a task for a connection on this loop's thread
+		 *
+		 * @param owner connection closed if the task fails
+		 * @param task  work on the connection or its game
+		 */
+		void execute(Connection owner, Runnable task) {
+			tasks.add(() -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					owner.fail(e);
+				}
+			});
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				for (Runnable task; (task = tasks.poll()) != null;)
+					task.run();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					// a failure ends the connection's game, never the loop
+					try {
+						if (key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.flush();
+					} catch (RuntimeException e) {
+						connection.fail(e);
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Accepts every pending connection and spreads them over the loops
+	 */
+	private void accept() {
+		try {
+			for (SocketChannel channel; (channel = server.accept()) != null;) {
+				channel.configureBlocking(false);
+				EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+				Connection connection = new Connection(channel);
+				connections.incrementAndGet();
+				loop.execute(connection, () -> connection.register(loop));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A client socket with its unread input and unsent output. Used only by
+	 * the thread of the loop it is registered with.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private EventLoop loop;
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(16);
+		private ByteBuffer out = ByteBuffer.allocate(16);
+		private int state = HANDSHAKE;
+		private int version = Connect4Wire.LEGACY;
+		private Game game;
+		private int seat;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void register(EventLoop loop) {
+			this.loop = loop;
+			try {
+				key = channel.register(loop.selector, interest(), this);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			// bytes read on the previous loop may already hold the next message
+			handle();
+		}
+
+		private int interest() {
+			return (in.hasRemaining() ? SelectionKey.OP_READ : 0) | (out.position() > 0 ? SelectionKey.OP_WRITE : 0);
+		}
+
+		private void updateInterest() {
+			if (key != null && key.isValid())
+				key.interestOps(interest());
+		}
+
+		void read() {
+			int n;
+			try {
+				n = channel.read(in);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			handle();
+		}
+
+		/**
+		 * Acts on the bytes read so far
+		 */
+		private void handle() {
+			if (state == HANDSHAKE && in.position() >= 1) {
+				in.flip();
+				int first = in.get() & 0xFF;
+				in.compact();
+				version = Connect4Wire.handshakeVersion(first);
+				if (version < 0) {
+					log("Unknown handshake " + first + " refused");
+					close();
+					return;
+				}
+				if (version == Connect4Wire.COMPACT)
+					put(Connect4Wire.handshakeAnswer());
+				// bit 0 asks for a player game in both protocols
+				if ((first & 1) != 0)
+					joinLobby(this);
+				else
+					new Game(this, null).start();
+			} else if (state == PLAYING) {
+				game.process();
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Takes the next move if a whole one has arrived
+		 *
+		 * @return 0-based column sent by the client, -1 if none is complete
+		 */
+		int nextColumn() {
+			boolean compact = version == Connect4Wire.COMPACT;
+			if (in.position() < (compact ? 1 : 8))
+				return -1;
+			in.flip();
+			int column;
+			if (compact) {
+				column = in.get() & 0xFF;
+			} else {
+				in.getInt(); // the row is ignored, the server decides it
+				column = in.getInt();
+			}
+			in.compact();
+			updateInterest();
+			// a negative column is invalid, but must still be answered
+			return column < 0 ? Integer.MAX_VALUE : column;
+		}
+
+		/**
+		 * Tells the client which player it is
+		 */
+		void sendPlayer(int player) {
+			send(player);
+		}
+
+		/**
+		 * Tells player 1 that the game starts
+		 */
+		void sendStart() {
+			send(1);
+		}
+
+		/**
+		 * Answers the client's move with the row played, -1 if refused
+		 */
+		void sendResult(int row) {
+			send(version == Connect4Wire.COMPACT ? Connect4Wire.compactResult(row) : row);
+		}
+
+		/**
+		 * Sends a game status without a move
+		 */
+		void sendStatus(int status) {
+			send(version == Connect4Wire.COMPACT ? Connect4Wire.compactStatus(status, 0) : status);
+		}
+
+		/**
+		 * Sends a game status with the opponent's move that led to it
+		 */
+		void sendStatus(int status, int row, int column) {
+			if (version == Connect4Wire.COMPACT)
+				send(Connect4Wire.compactStatus(status, column));
+			else
+				send(status, row, column);
+		}
+
+		/**
+		 * Queues values for the client, a byte each in the compact protocol
+		 * and an int each in the legacy one, and writes what the socket takes
+		 */
+		private void send(int... values) {
+			if (state == CLOSING || !channel.isOpen())
+				return;
+			put(values);
+			flush();
+		}
+
+		/**
+		 * Queues values without writing them
+		 */
+		private void put(int... values) {
+			int width = version == Connect4Wire.COMPACT ? 1 : 4;
+			if (out.remaining() < width * values.length) {
+				ByteBuffer bigger = ByteBuffer
+						.allocate(Math.max(2 * out.capacity(), out.position() + width * values.length));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			for (int value : values) {
+				if (width == 1)
+					out.put((byte) value);
+				else
+					out.putInt(value);
+			}
+		}
+
+		void flush() {
+			out.flip();
+			try {
+				channel.write(out);
+			} catch (IOException e) {
+				out.clear();
+				close();
+				return;
+			}
+			out.compact();
+			if (state == CLOSING && out.position() == 0)
+				close();
+			else
+				updateInterest();
+		}
+
+		/**
+		 * Closes the connection once everything queued has been sent
+		 */
+		void finish() {
+			state = CLOSING;
+			if (out.position() == 0)
+				close();
+		}
+
+		/**
+		 * Closes the connection after a bug in handling it, abandoning its game
+		 */
+		void fail(RuntimeException e) {
+			e.printStackTrace();
+			if (game != null)
+				game.abandon();
+			close();
+		}
+
+		void close() {
+			if (!channel.isOpen())
+				return;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			connections.decrementAndGet();
+			if (game != null)
+				game.abandon();
+			else
+				leaveLobby(this);
+		}
+	}
+
+	/**
+	 * Pairs a player who wants a human opponent with the one waiting, or
+	 * leaves the player waiting as player 1
+	 */
+	private void joinLobby(Connection player) {
+		Connection first;
+		synchronized (lobby) {
+			first = waiting;
+			waiting = first == null ? player : null;
+		}
+		if (first == null) {
+			player.state = WAITING;
+			player.sendPlayer(PLAYER1);
+			return;
+		}
+		// the game belongs to player 1's loop, so player 2 moves there
+		player.state = PLAYING;
+		player.key.cancel();
+		player.key = null;
+		player.loop = first.loop;
+		first.loop.execute(player, () -> {
+			if (!first.channel.isOpen()) {
+				// player 1 left before the pairing arrived, so player 2 waits instead
+				player.state = WAITING;
+				player.register(first.loop);
+				joinLobby(player);
+				return;
+			}
+			new Game(first, player).start();
+			player.register(first.loop);
+		});
+	}
+
+	private void leaveLobby(Connection player) {
+		synchronized (lobby) {
+			if (waiting == player)
+				waiting = null;
+		}
+	}
+
+	/**
+	 * One game as a state machine: the board, the seats and whose move is
+	 * expected. A computer sits in seat 1 when there is no second player.
+	 */
+	private final class Game {
+		private final Connection[] seats;
+		private final GameBoard gb = new Connect4(rules).getGameBoard();
+		private final SearchBudget.Session limits;
+		private int turn;
+		private boolean computing;
+		private boolean over;
+
+		Game(Connection player1, Connection player2) {
+			seats = new Connection[] { player1, player2 };
+			limits = player2 == null ? searchBudget.newSession(moveMillis, Long.MAX_VALUE, 200 * moveMillis,
+					Long.MAX_VALUE) : null;
+		}
+
+		void start() {
+			long number = games.incrementAndGet();
+			activeGames.incrementAndGet();
+			for (int i = 0; i < 2; i++) {
+				if (seats[i] != null) {
+					seats[i].state = PLAYING;
+					seats[i].game = this;
+					seats[i].seat = i;
+				}
+			}
+			if (seats[1] == null) {
+				seats[0].sendPlayer(PLAYER1);
+				seats[0].sendStart();
+				log("Computer joined session " + number);
+			} else {
+				seats[1].sendPlayer(PLAYER2);
+				seats[0].sendStart();
+				log("Start session " + number);
+			}
+			process();
+		}
+
+		/**
+		 * Plays every complete move the player to move has sent
+		 */
+		void process() {
+			while (!over && !computing) {
+				int column = seats[turn].nextColumn();
+				if (column < 0)
+					return;
+				move(column);
+			}
+		}
+
+		private void move(int column) {
+			Connection player = seats[turn];
+			if (column >= rules.getCols() || !gb.isValidColumn(column)) {
+				player.sendResult(-1);
+				return;
+			}
+			int row = gb.setToken(column + 1, turn == 0 ? 'X' : 'O');
+			player.sendResult(row);
+			boolean won = gb.isWinningMove(row, column);
+			if (seats[1] == null) {
+				if (won)
+					end(() -> seats[0].sendStatus(PLAYER1_WON));
+				else if (gb.isFull())
+					end(() -> seats[0].sendStatus(DRAW));
+				else
+					searchComputerMove();
+			} else if (turn == 0) {
+				if (won)
+					end(() -> {
+						seats[0].sendStatus(PLAYER1_WON);
+						seats[1].sendStatus(PLAYER1_WON, row, column);
+					});
+				else if (gb.isFull())
+					end(() -> {
+						seats[0].sendStatus(DRAW);
+						seats[1].sendStatus(DRAW, row, column);
+					});
+				else
+					seats[1].sendStatus(CONTINUE, row, column);
+				turn = 1;
+			} else {
+				if (won)
+					end(() -> {
+						seats[0].sendStatus(PLAYER2_WON, row, column);
+						seats[1].sendStatus(PLAYER2_WON);
+					});
+				else if (gb.isFull())
+					end(() -> {
+						seats[0].sendStatus(DRAW);
+						seats[1].sendStatus(DRAW, row, column);
+					});
+				else
+					seats[0].sendStatus(CONTINUE, row, column);
+				turn = 0;
+			}
+		}
+
+		/**
+		 * Queues the computer's search; the answer comes back on this loop
+		 */
+		private void searchComputerMove() {
+			computing = true;
+			Position position = Position.of(gb);
+			EventLoop loop = seats[0].loop;
+			long queued = System.nanoTime();
+			int movesLeft = (rules.getCells() - gb.getMoveCount() + 1) / 2;
+			try {
+				// the loop must not block, so a full queue is answered at once
+				enginePool.submit(EngineWorkerPool.NORMAL, () -> {
+					int column = bookMove(position);
+					if (column >= 0)
+						return column;
+					Connect4Engine engine = engines.get();
+					long waited = (System.nanoTime() - queued) / 1000000;
+					try (SearchBudget.Grant grant = limits.acquire(movesLeft)) {
+						engine.setTimeLimit(Math.max(1, grant.getMillis() - waited));
+						column = engine.bestMove(position);
+						grant.addNodes(engine.getNodes());
+					}
+					return column;
+				}, 0).whenComplete((column, error) -> loop.execute(seats[0], () -> computerMoved(column, error)));
+			} catch (RejectedExecutionException e) {
+				quickMoves.incrementAndGet();
+				computerMoved(quickMove(position), null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abandon();
+			}
+		}
+
+		/**
+		 * Looks a position up in the opening book, which is only used on the
+		 * board it was built for and within its depth
+		 *
+		 * @return 0-based column, -1 if the book has no playable move
+		 */
+		private int bookMove(Position position) {
+			if (openingBook == null || !openingBook.getRules().equals(rules)
+					|| position.getMoveCount() > openingBook.getPlies())
+				return -1;
+			int column = openingBook.lookup(position.getCurrent(), position.getMask());
+			return position.canPlay(column) ? column : -1;
+		}
+
+		/**
+		 * Move chosen without searching when the engine queue is full: a win,
+		 * else a block of the opponent's win, else the most central column
+		 */
+		private int quickMove(Position position) {
+			BitboardLayout layout = BitboardLayout.of(rules);
+			long mask = position.getMask();
+			long moves = layout.winningMoves(position.getCurrent(), mask);
+			if (moves == 0)
+				moves = layout.winningMoves(mask ^ position.getCurrent(), mask);
+			if (moves != 0)
+				return layout.columnOf(moves & -moves);
+			for (int col : layout.centerOrder()) {
+				if (position.canPlay(col))
+					return col;
+			}
+			return -1;
+		}
+
+		private void computerMoved(Integer column, Throwable error) {
+			computing = false;
+			if (over)
+				return;
+			if (error != null || column == null || column < 0 || column >= rules.getCols()
+					|| !gb.isValidColumn(column)) {
+				if (error != null)
+					error.printStackTrace();
+				abandon();
+				return;
+			}
+			int row = gb.setToken(column + 1, 'O');
+			if (gb.isWinningMove(row, column))
+				end(() -> seats[0].sendStatus(PLAYER2_WON, row, column));
+			else if (gb.isFull())
+				end(() -> seats[0].sendStatus(DRAW));
+			else
+				seats[0].sendStatus(CONTINUE, row, column);
+			process();
+		}
+
+		/**
+		 * Sends the final messages and closes both connections when sent
+		 */
+		private void end(Runnable messages) {
+			over = true;
+			activeGames.decrementAndGet();
+			messages.run();
+			for (Connection seat : seats) {
+				if (seat != null)
+					seat.finish();
+			}
+		}
+
+		/**
+		 * Ends a game a player left or that failed, closing the other player
+		 */
+		void abandon() {
+			if (over)
+				return;
+			over = true;
+			activeGames.decrementAndGet();
+			for (Connection seat : seats) {
+				if (seat != null)
+					seat.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of open client connections
+	 *
+	 * @return connections
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Returns the number of games being played
+	 *
+	 * @return games in progress
+	 */
+	public int getActiveGames() {
+		return activeGames.get();
+	}
+
+	/**
+	 * Returns how often the computer moved without a search because the
+	 * engine queue was full
+	 *
+	 * @return quick moves played
+	 */
+	public long getQuickMoves() {
+		return quickMoves.get();
+	}
+
+	/**
+	 * Stops the event loops and closes the listening socket
+	 */
+	public void close() {
+		running = false;
+		for (EventLoop loop : loops)
+			loop.selector.wakeup();
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		enginePool.shutdown();
+	}
+
+	/**
+	 * Runs the server without a window
+	 *
+	 * @param args optional port (default 8000), event loop threads (default
+	 *             every core) and computer time per move in milliseconds
+	 *             (default 50)
+	 * @throws IOException if the port cannot be opened
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long moveMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+		new Connect4NioServer(port, threads, moveMillis, Connect4Rules.STANDARD, new EngineWorkerPool(),
+				new ServerLog(ServerLog.DEFAULT_CAPACITY, System.out));
+	}
+}
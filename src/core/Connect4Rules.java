@@ -0,0 +1,114 @@
+package core;
+
+import java.io.Serializable;
+
+/**
+ * Board geometry and winning run length for a Connect4 variant
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4.GameBoard
+ */
+public final class Connect4Rules implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** Maximum number of columns, one bit per column in a legal column mask */
+	public static final int MAX_COLS = 31;
+
+	/** Standard 6 row, 7 column connect-4 */
+	public static final Connect4Rules STANDARD = new Connect4Rules(6, 7, 4);
+
+	private final int rows;
+	private final int cols;
+	private final int connect;
+
+	/**
+	 * Creates the rules for a variant
+	 *
+	 * @param rows    Number of rows of the board
+	 * @param cols    Number of columns of the board
+	 * @param connect Number of tokens in a row needed to win
+	 * @throws IllegalArgumentException if the geometry is out of range or the
+	 *                                  run cannot fit on the board
+	 */
+	public Connect4Rules(int rows, int cols, int connect) throws IllegalArgumentException {
+		if (rows < 1 || cols < 1 || cols > MAX_COLS || connect < 2 || connect > Math.max(rows, cols))
+			throw new IllegalArgumentException(rows + "x" + cols + " connect-" + connect);
+		this.rows = rows;
+		this.cols = cols;
+		this.connect = connect;
+	}
+
+	/**
+	 * Returns number of rows
+	 *
+	 * @return Number of rows
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Returns number of columns
+	 *
+	 * @return Number of columns
+	 */
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the number of tokens in a row needed to win
+	 *
+	 * @return winning run length
+	 */
+	public int getConnect() {
+		return connect;
+	}
+
+	/**
+	 * Returns the number of cells on the board
+	 *
+	 * @return rows * cols
+	 */
+	public int getCells() {
+		return rows * cols;
+	}
+
+	/**
+	 * Checks if a board of this size fits a 64-bit mask per player, using one
+	 * spare bit on top of every column
+	 *
+	 * @return true if (rows + 1) * cols is at most 64
+	 */
+	public boolean fitsBitboard() {
+		return (rows + 1) * cols <= 64;
+	}
+
+	/**
+	 * Checks if these are the standard 6x7 connect-4 rules
+	 *
+	 * @return true for standard rules
+	 */
+	public boolean isStandard() {
+		return equals(STANDARD);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Connect4Rules))
+			return false;
+		Connect4Rules r = (Connect4Rules) o;
+		return rows == r.rows && cols == r.cols && connect == r.connect;
+	}
+
+	@Override
+	public int hashCode() {
+		return (rows * 31 + cols) * 31 + connect;
+	}
+
+	@Override
+	public String toString() {
+		return rows + "x" + cols + " connect-" + connect;
+	}
+}
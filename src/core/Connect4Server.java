@@ -1,210 +1,463 @@
 package core;
 
-import javafx.application.Application;
-import javafx.scene.Scene;
-import javafx.stage.Stage;
-import ui.Connect4TextConsole;
-import javafx.scene.control.ScrollPane;
-import javafx.scene.control.TextArea;
 import java.io.*;
 import java.net.*;
-import javafx.application.Platform;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import core.Connect4.Connect4Constants;
 import core.Connect4.GameBoard;
 import core.Connect4.Player;
 
 /**
- * Server for Connect4 game
+ * Server for Connect4 game. It needs no JavaFX and logs to a ServerLog, which
+ * the server window of Connect4ServerGUI shows when there is a display.
  * 
  * @author Abraham Gomez
  * @version 1.0
  */
-public class Connect4Server extends Application implements Connect4Constants {
-	private int sessionNo = 1;
-	private int portNo = 8000;
+public class Connect4Server implements Connect4Constants {
+	/** Tokens on the board from which the expert level plays the solver */
+	public static final int EXPERT_SOLVER_MOVES = 10;
+
+	private final AtomicInteger sessionNo = new AtomicInteger(1);
+	private final Lobby<Waiting> lobby = new Lobby<Waiting>(Connect4Server::isPresent);
+	private int handshakeMillis = 10000;
+	private final int portNo;
+	private final SessionThreads sessionThreads;
+	private final ServerLog serverLog;
+	private volatile ServerSocket serverSocket;
+	private long computerMoveMillis = 50;
+	private long computerMoveNodes = Long.MAX_VALUE;
+	private long computerSessionMillis = 10000;
+	private long computerSessionNodes = Long.MAX_VALUE;
+	private final OpeningBook openingBook = OpeningBook.openDefault();
+	private final EngineWorkerPool enginePool = new EngineWorkerPool();
+	private final SearchBudget searchBudget = new SearchBudget(enginePool);
+	private final Set<HandleAComputerSession> computerSessions = ConcurrentHashMap.newKeySet();
+	private volatile ParallelSearch parallelSearch;
+	private volatile long casualPlayouts;
+	private volatile Connect4Solver solver;
 
 	/**
-	 * Entry to Server Program
+	 * Creates a server
+	 *
+	 * @param portNo         port to listen on
+	 * @param sessionThreads threads to run the accept loop and sessions on
+	 * @param serverLog      log of joins and sessions
 	 */
-	@Override
-	public void start(Stage primaryStage) {
-		TextArea taLog = new TextArea();
+	public Connect4Server(int portNo, SessionThreads sessionThreads, ServerLog serverLog) {
+		this.portNo = portNo;
+		this.sessionThreads = sessionThreads;
+		this.serverLog = serverLog;
+	}
 
-		// scene
-		Scene scene = new Scene(new ScrollPane(taLog), 450, 200);
-		primaryStage.setTitle("Connect4 Server"); // Set the stage title
-		primaryStage.setScene(scene); // Place the scene in the stage
-		primaryStage.show(); // Display the stage
+	/**
+	 * Accepts players until the server socket is closed. The loop does
+	 * nothing but accept: every player's handshake and pairing run on the
+	 * player's own thread, so a slow or silent client delays no one else.
+	 */
+	public void serve() {
+		try {
+			// Create a server socket
+			serverSocket = new ServerSocket(portNo);
+			log(new Date() + ": Server started at socket " + portNo + " with " + sessionThreads);
+
+			while (true) {
+				Socket player = serverSocket.accept();
+				sessionThreads.start(() -> join(player));
+			}
+		} catch (IOException ex) {
+			// closing the server socket is how stop ends the accept loop
+			if (serverSocket == null || !serverSocket.isClosed())
+				ex.printStackTrace();
+		}
+	}
 
-		new Thread(() -> {
-			try {
-				// Create a server socket
-				ServerSocket serverSocket = new ServerSocket(portNo);
-				Platform.runLater(() -> taLog.appendText(new Date() + ": Server started at socket " + portNo + "\n"));
+	/**
+	 * A player waiting in the lobby. The ready latch opens once the player has
+	 * been told it is player 1, which must reach it before the session's
+	 * start signal.
+	 */
+	private static final class Waiting {
+		private final Connect4Wire wire;
+		private final CountDownLatch ready = new CountDownLatch(1);
 
-				// Ready to create a session for every two players
-				while (true) {
-					Platform.runLater(() -> taLog
-							.appendText(new Date() + ": Waiting for players to join session " + sessionNo + '\n'));
+		Waiting(Connect4Wire wire) {
+			this.wire = wire;
+		}
+	}
 
-					// Connect to player 1
-					Socket player1 = serverSocket.accept();
+	/**
+	 * Reads a player's choice of game and protocol and starts a session
+	 * against the computer, or pairs the player in the lobby. The second
+	 * player of a pair runs the session on its thread; the first player's
+	 * thread ends once it waits.
+	 *
+	 * @param player the accepted player
+	 */
+	private void join(Socket player) {
+		String address = player.getInetAddress().getHostAddress();
+		try {
+			// a client that never says which game it wants is dropped
+			player.setSoTimeout(handshakeMillis);
+			Connect4Wire wire = Connect4Wire.accept(player);
+			player.setSoTimeout(0);
+			String protocol = wire.getVersion() == Connect4Wire.LEGACY ? "legacy" : "compact";
+
+			if (!wire.isPlayerGame()) {
+				wire.sendPlayer(PLAYER1);
+				log(new Date() + ": Computer joined session " + sessionNo.getAndIncrement() + " from " + address
+						+ " (" + protocol + ", " + computerLevel() + " level)");
+				new HandleAComputerSession(wire).run();
+				return;
+			}
 
-					Platform.runLater(() -> {
-						taLog.appendText(new Date() + ": Player 1 joined session " + sessionNo + '\n');
-						taLog.appendText("Player 1's IP address" + player1.getInetAddress().getHostAddress() + '\n');
-					});
+			Waiting me = new Waiting(wire);
+			Waiting player1 = lobby.join(Lobby.Bucket.of(Connect4Rules.STANDARD), me);
+			if (player1 == null) {
+				// Notify that the player is Player 1
+				try {
+					wire.sendPlayer(PLAYER1);
+				} finally {
+					me.ready.countDown();
+				}
+				log(new Date() + ": Player 1 from " + address + " waiting in the lobby (" + protocol + ")");
+				return;
+			}
+
+			// Notify that the player is Player 2
+			wire.sendPlayer(PLAYER2);
+			int session = sessionNo.getAndIncrement();
+			log(new Date() + ": Player 2 from " + address + " (" + protocol + ") joined "
+					+ player1.wire.getSocket().getInetAddress().getHostAddress() + " in session " + session);
+			new HandleASession(player1.wire, wire).run();
+		} catch (SocketTimeoutException ex) {
+			log(new Date() + ": Player from " + address + " sent no handshake");
+			close(player);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			close(player);
+		}
+	}
+
+	/**
+	 * Checks that a waiting player is still connected before it is paired. A
+	 * waiting client sends nothing, so end of stream or any data means it is
+	 * gone or broken.
+	 *
+	 * @param waiting the waiting player
+	 * @return true if the player can start a game
+	 */
+	private static boolean isPresent(Waiting waiting) {
+		Socket socket = waiting.wire.getSocket();
+		try {
+			waiting.ready.await();
+			socket.setSoTimeout(1);
+			socket.getInputStream().read();
+		} catch (SocketTimeoutException e) {
+			try {
+				socket.setSoTimeout(0);
+				return true;
+			} catch (IOException ex) {
+				// closed in the meantime
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// reset by the client
+		}
+		close(socket);
+		return false;
+	}
 
-					boolean playerGame = new DataInputStream(player1.getInputStream()).readBoolean();
-					// Notify that the player is Player 1
-					if (playerGame) {
-						new DataOutputStream(player1.getOutputStream()).writeInt(PLAYER1);
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-						// Connect to player 2
-						Socket player2 = serverSocket.accept();
+	/**
+	 * Adds a line to the server log
+	 *
+	 * @param message line to log
+	 */
+	private void log(String message) {
+		serverLog.log(message);
+	}
 
-						Platform.runLater(() -> {
-							taLog.appendText(new Date() + ": Player 2 joined session " + sessionNo + '\n');
-							taLog.appendText(
-									"Player 2's IP address" + player2.getInetAddress().getHostAddress() + '\n');
-						});
+	/**
+	 * Returns the log of joins and sessions
+	 *
+	 * @return the server log
+	 */
+	public ServerLog getLog() {
+		return serverLog;
+	}
 
-						// Notify that the player is Player 2
-						new DataOutputStream(player2.getOutputStream()).writeInt(PLAYER2);
+	/**
+	 * Plays the hard level: every computer session started afterwards
+	 * searches its moves on several cores, within the same limits
+	 *
+	 * @param parallelSearch search shared by the sessions, null for the
+	 *                       single-threaded engine
+	 */
+	public void setParallelSearch(ParallelSearch parallelSearch) {
+		this.parallelSearch = parallelSearch;
+	}
 
-						// Display this session and increment session number
-						Platform.runLater(() -> taLog
-								.appendText(new Date() + ": Start a thread for session " + sessionNo++ + '\n'));
+	/**
+	 * Names the level new computer sessions play at
+	 *
+	 * @return casual, hard or normal
+	 */
+	private String computerLevel() {
+		if (casualPlayouts > 0)
+			return "casual";
+		if (solver != null)
+			return "expert";
+		return parallelSearch != null ? "hard" : "normal";
+	}
 
-						boolean player2Game = new DataInputStream(player2.getInputStream()).readBoolean();
-						// Launch a new thread for this session of two players
-						new Thread(new HandleASession(player1, player2)).start();
-					} else {
-						new DataOutputStream(player1.getOutputStream()).writeInt(PLAYER1);
-						taLog.appendText(new Date() + ": Computer joined session " + sessionNo++ + '\n');
-						new Thread(new HandleAComputerSession(player1)).start();
-					}
+	/**
+	 * Plays the expert level: every computer session started afterwards plays
+	 * perfectly with the solver from EXPERT_SOLVER_MOVES tokens on, when a
+	 * position solves in well under a second, and plays the book and engine
+	 * before
+	 *
+	 * @param solver solver shared by the sessions, with its store of solved
+	 *               positions, null for none
+	 */
+	public void setSolver(Connect4Solver solver) {
+		this.solver = solver;
+	}
 
-				}
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
-		}).start();
+	/**
+	 * Plays the casual level: every computer session started afterwards plays
+	 * Monte Carlo Tree Search with a playout limit per move, on the fast lane
+	 * of the engine pool
+	 *
+	 * @param casualPlayouts playouts per move, 0 for the full-strength search
+	 * @throws IllegalArgumentException if casualPlayouts is negative
+	 */
+	public void setCasualPlayouts(long casualPlayouts) throws IllegalArgumentException {
+		if (casualPlayouts < 0)
+			throw new IllegalArgumentException("Playouts must not be negative");
+		this.casualPlayouts = casualPlayouts;
+	}
+
+	/**
+	 * Stops accepting players and cancels the searches of every computer
+	 * session when the server shuts down
+	 */
+	public void stop() {
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (HandleAComputerSession session : computerSessions)
+			session.cancel();
+		enginePool.shutdown();
 	}
 
 	/**
 	 * Handles a session when a player is playing against a computer
 	 */
 	class HandleAComputerSession implements Runnable, Connect4Constants {
-		private Socket player1;
-		private Socket player2;
+		private Connect4Wire player1;
 		private Player playerX;
 		private Player playerO;
+		private Connect4ComputerPlayer computer;
+		private SearchBudget.Session limits;
+		private int priority = EngineWorkerPool.NORMAL;
+		private volatile boolean cancelled;
 		private Connect4 connect4;
 		private GameBoard gb;
 		private int actualRow;
 		private int compCol;
 
 		/**
-		 * Constructor for handling a session against a computer
+		 * Constructor for handling a session against a computer at the server's
+		 * level
+		 * 
+		 * @param player1 the player's connection
+		 */
+		public HandleAComputerSession(Connect4Wire player1) {
+			this(player1, Connect4Rules.STANDARD, computerMoveMillis, casualPlayouts);
+		}
+
+		/**
+		 * Constructor for handling a session against a computer on a variant board
 		 * 
-		 * @param player1 the player socket
+		 * @param player1    the player's connection
+		 * @param rules      board geometry and winning run length
+		 * @param moveMillis the computer's time budget per move in milliseconds
 		 */
-		public HandleAComputerSession(Socket player1) {
+		public HandleAComputerSession(Connect4Wire player1, Connect4Rules rules, long moveMillis) {
+			this(player1, rules, moveMillis, 0);
+		}
+
+		/**
+		 * Constructor for handling a session against a computer, optionally at the
+		 * casual strength. A casual computer plays Monte Carlo Tree Search and
+		 * keeps its tree for the whole session.
+		 * 
+		 * @param player1        the player's connection
+		 * @param rules          board geometry and winning run length
+		 * @param moveMillis     the computer's time budget per move in milliseconds
+		 * @param casualPlayouts playouts per move for a casual computer, 0 for the
+		 *                       full-strength search
+		 */
+		public HandleAComputerSession(Connect4Wire player1, Connect4Rules rules, long moveMillis, long casualPlayouts) {
 			this.player1 = player1;
-			connect4 = new Connect4();
+			connect4 = new Connect4(rules);
 			playerX = connect4.new Player('X');
-			playerO = new Connect4ComputerPlayer(connect4, 'O');
+			computer = new Connect4ComputerPlayer(connect4, 'O', rules.getCells());
+			computer.setNodeLimit(Long.MAX_VALUE);
+			computer.setTimeLimit(moveMillis);
+			computer.setOpeningBook(openingBook);
+			if (casualPlayouts > 0 && rules.fitsBitboard()) {
+				MonteCarloEngine monteCarlo = new MonteCarloEngine(rules);
+				monteCarlo.setPlayoutLimit(casualPlayouts);
+				monteCarlo.setTimeLimit(moveMillis);
+				computer.setMonteCarloEngine(monteCarlo);
+				priority = EngineWorkerPool.FAST;
+			}
+			ParallelSearch parallel = parallelSearch;
+			if (parallel != null && parallel.getRules().equals(rules))
+				computer.setParallelSearch(parallel);
+			computer.setSolver(solver, EXPERT_SOLVER_MOVES);
+			playerO = computer;
 			gb = connect4.getGameBoard();
+			limits = searchBudget.newSession(Math.max(1, moveMillis), computerMoveNodes, computerSessionMillis,
+					computerSessionNodes);
+			// pondering takes idle workers only and is charged to the session
+			computer.setPondering(enginePool, limits);
+		}
+
+		/**
+		 * Ends the session from another thread: the computer's search stops at
+		 * once and the socket is closed
+		 */
+		public void cancel() {
+			cancelled = true;
+			computer.cancel();
+			try {
+				player1.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Has the shared engine pool search the computer's move within the
+		 * session's limits and its share of the server's budget. The time spent
+		 * in the queue comes out of the move's time.
+		 */
+		private int searchMove() throws IOException {
+			long queued = System.nanoTime();
+			try {
+				return enginePool.submit(priority, () -> {
+					computer.stopPondering();
+					long waited = (System.nanoTime() - queued) / 1000000;
+					int movesLeft = (gb.getRules().getCells() - gb.getMoveCount() + 1) / 2;
+					try (SearchBudget.Grant grant = limits.acquire(movesLeft)) {
+						computer.setTimeLimit(Math.max(1, grant.getMillis() - waited));
+						computer.setNodeLimit(grant.getNodes());
+						int column = computer.chooseColumn();
+						grant.addNodes(computer.getLastNodes());
+						return column;
+					}
+				}).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the computer's move");
+			} catch (ExecutionException e) {
+				throw new IOException("Computer could not move", e.getCause());
+			}
 		}
 
 		/**
 		 * Starts game logic when a player plays against a computer
 		 */
 		public void run() {
+			computerSessions.add(this);
 			try {
-				DataInputStream fromPlayer1 = new DataInputStream(player1.getInputStream());
-				DataOutputStream toPlayer1 = new DataOutputStream(player1.getOutputStream());
+				player1.sendStart();
 
-				toPlayer1.writeInt(1);
-
-				while (true) {
+				while (!cancelled) {
 					// Receive a move from player 1
-					int row = 0;
 					int column = 0;
 					boolean invalid = true;
 
 					while (invalid) {
-						row = fromPlayer1.readInt();
-						column = fromPlayer1.readInt();
+						column = player1.readColumn();
 						if (gb.isValidColumn(column)) {
 							actualRow = gb.setToken(column + 1, playerX.getChar());
-							toPlayer1.writeInt(actualRow);
+							player1.sendResult(actualRow);
 							invalid = false;
 						} else {
-							toPlayer1.writeInt(-1);
+							player1.sendResult(-1);
 						}
 					}
 
 					// Check if Player 1 wins
-					if (connect4.checkWinnerServer(playerX)) {
-						toPlayer1.writeInt(PLAYER1_WON);
+					if (connect4.checkWinnerServer(playerX, actualRow, column)) {
+						player1.sendStatus(PLAYER1_WON);
 						break; // Break the loop
 					} else if (gb.isFull()) { // Check if all cells are filled
-						toPlayer1.writeInt(DRAW);
+						player1.sendStatus(DRAW);
 						break;
 					} else {
-						compCol = playerO.takeTurnGUI();
+						compCol = searchMove();
 						actualRow = gb.setToken(compCol + 1, playerO.getChar());
 
 					}
 
 					// Check if Player 2 wins
-					if (connect4.checkWinnerServer(playerO)) {
-						toPlayer1.writeInt(PLAYER2_WON);
-						sendMove(toPlayer1, actualRow, column);
+					if (connect4.checkWinnerServer(playerO, actualRow, compCol)) {
+						player1.sendStatus(PLAYER2_WON, actualRow, compCol);
 						break;
 					} else if (gb.isFull()) {
-						toPlayer1.writeInt(DRAW);
+						player1.sendStatus(DRAW);
 						break;
 					} else {
 						// Notify player 1 to take the turn
-						toPlayer1.writeInt(CONTINUE);
-
-						// Send player 2's selected row and column to player 1
-						sendMove(toPlayer1, actualRow, compCol);
+						player1.sendStatus(CONTINUE, actualRow, compCol);
+						// search the replies while player 1 thinks, unless every core is busy
+						if (!searchBudget.isLoaded())
+							computer.startPondering();
 					}
-//				
-					Connect4TextConsole.displayBoard(gb);
 				}
 
 			} catch (IOException e) {
-				e.printStackTrace();
+				// closing the socket is how cancel ends a blocked read
+				if (!cancelled)
+					e.printStackTrace();
+			} finally {
+				computer.stopPondering();
+				computerSessions.remove(this);
+				close(player1.getSocket());
+				log(new Date() + ": Computer search budget: " + searchBudget + "; engine pool: " + enginePool);
 			}
 
 		}
 
-		/**
-		 * Transmits the data to the computer player output stream
-		 * 
-		 * @param out    The player's output stream
-		 * @param row    The row selected by opponent
-		 * @param column The column selected by opponent
-		 * @throws IOException DataOutputStream exception
-		 */
-		private void sendMove(DataOutputStream out, int row, int column) throws IOException {
-			out.writeInt(row); // Send row index
-			out.writeInt(column); // Send column index
-		}
 	}
 
 	/**
 	 * Class to handle a session between two players
 	 */
 	class HandleASession implements Runnable, Connect4Constants {
-		private Socket player1;
-		private Socket player2;
+		private Connect4Wire player1;
+		private Connect4Wire player2;
 		private Player playerX;
 		private Player playerO;
 		private Connect4 connect4;
@@ -215,13 +468,23 @@ public class Connect4Server extends Application implements Connect4Constants {
 		
 		/**
 		 * Constructor for HandleASession
-		 * @param player1 Player 1 socket
-		 * @param player2 Player 2 socket
+		 * @param player1 Player 1 connection
+		 * @param player2 Player 2 connection
 		 */
-		public HandleASession(Socket player1, Socket player2) {
+		public HandleASession(Connect4Wire player1, Connect4Wire player2) {
+			this(player1, player2, Connect4Rules.STANDARD);
+		}
+
+		/**
+		 * Constructor for HandleASession on a variant board
+		 * @param player1 Player 1 connection
+		 * @param player2 Player 2 connection
+		 * @param rules board geometry and winning run length
+		 */
+		public HandleASession(Connect4Wire player1, Connect4Wire player2, Connect4Rules rules) {
 			this.player1 = player1;
 			this.player2 = player2;
-			connect4 = new Connect4();
+			connect4 = new Connect4(rules);
 			playerX = connect4.new Player('X');
 			playerO = connect4.new Player('O');
 			gb = connect4.getGameBoard();
@@ -231,115 +494,148 @@ public class Connect4Server extends Application implements Connect4Constants {
 		/** Implement the run() method for the thread */
 		public void run() {
 			try {
-				// Create data input and output streams
-				DataInputStream fromPlayer1 = new DataInputStream(player1.getInputStream());
-				DataOutputStream toPlayer1 = new DataOutputStream(player1.getOutputStream());
-				DataInputStream fromPlayer2 = new DataInputStream(player2.getInputStream());
-				DataOutputStream toPlayer2 = new DataOutputStream(player2.getOutputStream());
-
 				// Write anything to notify player 1 to start
 				// This is just to let player 1 know to start
-				toPlayer1.writeInt(1);
+				player1.sendStart();
 
 				// Continuously serve the players and determine and report
 				// the game status to the players
 				while (true) {
 					// Receive a move from player 1
-					int row = 0;
 					int column = 0;
 					boolean invalid = true;
 					while (invalid) {
-						row = fromPlayer1.readInt();
-						column = fromPlayer1.readInt();
+						column = player1.readColumn();
 						if (gb.isValidColumn(column)) {
 							actualRow = gb.setToken(column + 1, playerX.getChar());
-							toPlayer1.writeInt(actualRow);
+							player1.sendResult(actualRow);
 							invalid = false;
 						} else {
-							toPlayer1.writeInt(-1);
+							player1.sendResult(-1);
 						}
 					}
 
 					// Check if Player 1 wins
-					if (connect4.checkWinnerServer(playerX)) {
-						toPlayer1.writeInt(PLAYER1_WON);
-						toPlayer2.writeInt(PLAYER1_WON);
-						sendMove(toPlayer2, actualRow, column);
+					if (connect4.checkWinnerServer(playerX, actualRow, column)) {
+						player1.sendStatus(PLAYER1_WON);
+						player2.sendStatus(PLAYER1_WON, actualRow, column);
 						break; // Break the loop
 					} else if (gb.isFull()) { // Check if all cells are filled
-						toPlayer1.writeInt(DRAW);
-						toPlayer2.writeInt(DRAW);
-						sendMove(toPlayer2, actualRow, column);
+						player1.sendStatus(DRAW);
+						player2.sendStatus(DRAW, actualRow, column);
 						break;
 					} else {
 						// Notify player 2 to take the turn
-						toPlayer2.writeInt(CONTINUE);
-
-						// Send player 1's selected row and column to player 2
-						sendMove(toPlayer2, actualRow, column);
+						player2.sendStatus(CONTINUE, actualRow, column);
 					}
 
 					invalid = true;
 					// Receive a move from Player 2
 					while (invalid) {
-						row = fromPlayer2.readInt();
-						column = fromPlayer2.readInt();
+						column = player2.readColumn();
 
 						if (gb.isValidColumn(column)) {
 							actualRow = gb.setToken(column + 1, playerO.getChar());
-							toPlayer2.writeInt(actualRow);
+							player2.sendResult(actualRow);
 							invalid = false;
 						} else {
-							toPlayer2.writeInt(-1);
+							player2.sendResult(-1);
 						}
 					}
 
 					// Check if Player 2 wins
-					if (connect4.checkWinnerServer(playerO)) {
-						toPlayer1.writeInt(PLAYER2_WON);
-						toPlayer2.writeInt(PLAYER2_WON);
-						sendMove(toPlayer1, actualRow, column);
+					if (connect4.checkWinnerServer(playerO, actualRow, column)) {
+						player1.sendStatus(PLAYER2_WON, actualRow, column);
+						player2.sendStatus(PLAYER2_WON);
 						break;
 					} else if (gb.isFull()) {
-						toPlayer1.writeInt(DRAW);
-						toPlayer2.writeInt(DRAW);
-						sendMove(toPlayer2, actualRow, column);
+						player1.sendStatus(DRAW);
+						player2.sendStatus(DRAW, actualRow, column);
 						break;
 					} else {
 						// Notify player 1 to take the turn
-						toPlayer1.writeInt(CONTINUE);
-
-						// Send player 2's selected row and column to player 1
-						sendMove(toPlayer1, actualRow, column);
+						player1.sendStatus(CONTINUE, actualRow, column);
 					}
 //				
 				}
 			} catch (IOException ex) {
 				ex.printStackTrace();
+			} finally {
+				// the game is over either way, so neither client is left waiting
+				close(player1.getSocket());
+				close(player2.getSocket());
 			}
 		}
 
-		
-		/**
-		 * Sends row and column to server 
-		 * @param out DataOutputStream to send data
-		 * @param row the selected row
-		 * @param column the selected column
-		 * @throws IOException exception if error transmitting data
-		 */
-		private void sendMove(DataOutputStream out, int row, int column) throws IOException {
-			out.writeInt(row); // Send row index
-			out.writeInt(column); // Send column index
-		}
 	}
 
 	/**
-	 * Used when running from eclipse
+	 * Runs the server without a window, logging to the console
 	 * 
-	 * @param args string arguments
+	 * @param args optional --port=N (default 8000), --threads=platform or
+	 *             virtual (default platform), --lines=N lines kept in memory
+	 *             (default 1000), --log=FILE to append every line to,
+	 *             --parallel=N to search the computer's moves on N threads,
+	 *             the hard level, and --casual=N for a computer playing Monte
+	 *             Carlo Tree Search with N playouts per move, the casual
+	 *             level, and --expert=FILE for a computer that solves
+	 *             positions exactly and keeps them in the store FILE, the
+	 *             expert level; the first four are the same named parameters
+	 *             as Connect4ServerGUI
+	 * @throws IOException          if the log file cannot be opened
+	 * @throws InterruptedException if interrupted while the server runs
 	 */
-	public static void main(String[] args) {
-		launch(args);
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = 8000;
+		String threads = "platform";
+		int lines = ServerLog.DEFAULT_CAPACITY;
+		String file = null;
+		int parallel = 0;
+		long casual = 0;
+		String expert = null;
+		for (String arg : args) {
+			if (arg.startsWith("--port="))
+				port = Integer.parseInt(arg.substring(7));
+			else if (arg.startsWith("--threads="))
+				threads = arg.substring(10);
+			else if (arg.startsWith("--lines="))
+				lines = Integer.parseInt(arg.substring(8));
+			else if (arg.startsWith("--log="))
+				file = arg.substring(6);
+			else if (arg.startsWith("--parallel="))
+				parallel = Integer.parseInt(arg.substring(11));
+			else if (arg.startsWith("--casual="))
+				casual = Long.parseLong(arg.substring(9));
+			else if (arg.startsWith("--expert="))
+				expert = arg.substring(9);
+			else
+				throw new IllegalArgumentException("Unknown argument " + arg);
+		}
+		ServerLog serverLog = new ServerLog(lines, System.out);
+		if (file != null)
+			serverLog.openFile(file);
+		SessionThreads sessionThreads = SessionThreads.forMode(threads, "session");
+		Connect4Server server = new Connect4Server(port, sessionThreads, serverLog);
+		ParallelSearch parallelSearch = parallel > 0 ? new ParallelSearch(Connect4Rules.STANDARD, parallel) : null;
+		server.setParallelSearch(parallelSearch);
+		server.setCasualPlayouts(casual);
+		Connect4Solver solver = expert != null ? new Connect4Solver(Connect4Rules.STANDARD) : null;
+		if (solver != null)
+			solver.setStore(new SolvedPositionStore(new File(expert), Connect4Rules.STANDARD));
+		server.setSolver(solver);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			if (parallelSearch != null)
+				parallelSearch.shutdown();
+			if (solver != null) {
+				solver.getStore().close();
+				solver.shutdown();
+			}
+			serverLog.close();
+		}));
+		// the accept loop runs on a session thread too, and a virtual thread
+		// does not keep the JVM alive, so main waits for it
+		sessionThreads.start(server::serve).join();
 	}
 
 }
@@ -0,0 +1,463 @@
+package core;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Exact solver for connect-4 positions, for the expert level and analysis.
+ * Scores are game theoretic values rather than heuristics: positive if the
+ * player to move wins, negative if they lose and 0 for a draw. A win with
+ * the player's own k-th token scores cells / 2 + 1 - k, so a faster win
+ * scores more and a slower loss scores more; outcome and pliesToEnd decode
+ * a score.
+ * <p>
+ * The search is a null-window negamax that only tries moves that do not
+ * lose at once, ordered by the threats they create, with a transposition
+ * table of score bounds. Root moves are solved in parallel on a ForkJoinPool
+ * sharing the table, whose entries are checked against their key so the
+ * threads need no locks. Solved positions are kept in an optional
+ * SolvedPositionStore.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see SolvedPositionStore
+ * @see Connect4ComputerPlayer
+ */
+public class Connect4Solver {
+	/** Transposition table size used when none is given, 64 MB */
+	public static final int DEFAULT_TABLE_BITS = 21;
+	/** Score of a column that cannot be played */
+	public static final int INVALID = Integer.MIN_VALUE;
+
+	private final BitboardLayout layout;
+	private final int cells;
+	private final TranspositionTable tt;
+	private final ForkJoinPool pool;
+	private final ThreadLocal<Search> searches;
+	private SolvedPositionStore store;
+	private volatile long nodes;
+
+	/**
+	 * Creates a solver using every core
+	 *
+	 * @param rules Board geometry, connect-4 only
+	 */
+	public Connect4Solver(Connect4Rules rules) {
+		this(rules, Runtime.getRuntime().availableProcessors(), DEFAULT_TABLE_BITS);
+	}
+
+	/**
+	 * Creates a solver
+	 *
+	 * @param rules     Board geometry, connect-4 only
+	 * @param threads   number of worker threads
+	 * @param tableBits log2 of the transposition table buckets
+	 * @throws IllegalArgumentException if the rules are not connect-4 on a board
+	 *                                  that fits in 64 bits
+	 */
+	public Connect4Solver(Connect4Rules rules, int threads, int tableBits) throws IllegalArgumentException {
+		if (rules.getConnect() != 4)
+			throw new IllegalArgumentException("The solver only plays connect-4, not " + rules);
+		layout = BitboardLayout.of(rules);
+		cells = rules.getCells();
+		tt = new TranspositionTable(tableBits);
+		pool = new ForkJoinPool(threads);
+		searches = ThreadLocal.withInitial(Search::new);
+	}
+
+	/**
+	 * Keeps solved positions in a store, reusing positions solved before
+	 *
+	 * @param store the store to use, null for none
+	 */
+	public void setStore(SolvedPositionStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Returns the store of solved positions
+	 *
+	 * @return the store, null if there is none
+	 */
+	public SolvedPositionStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the rules of the solver
+	 *
+	 * @return board geometry and winning run length
+	 */
+	public Connect4Rules getRules() {
+		return layout.getRules();
+	}
+
+	/**
+	 * Returns the nodes searched by the last solve on all threads
+	 *
+	 * @return node count
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Solves the position on the board for the player to move. 'X' moves first.
+	 *
+	 * @param gb The board to solve, left unchanged
+	 * @return score for the player to move
+	 * @throws IllegalArgumentException if the board has other rules or a winner
+	 */
+	public int solve(GameBoard gb) throws IllegalArgumentException {
+		if (store != null && gb.getRules().equals(layout.getRules())) {
+			long x = gb.getTokens('X');
+			long o = gb.getTokens('O');
+			int stored = store.get(gb.getMoveCount() % 2 == 0 ? x : o, x | o);
+			if (stored != Integer.MIN_VALUE)
+				return stored;
+		}
+		return best(scoreColumns(gb));
+	}
+
+	/**
+	 * Returns the score of a position from the scores of its columns
+	 */
+	private static int best(int[] scores) {
+		int best = INVALID;
+		for (int score : scores)
+			best = Math.max(best, score);
+		return best == INVALID ? 0 : best;
+	}
+
+	/**
+	 * Solves every column of the position on the board
+	 *
+	 * @param gb The board to solve, left unchanged
+	 * @return score of each 0-based column for the player to move, INVALID for
+	 *         full columns
+	 * @throws IllegalArgumentException if the board has other rules or a winner
+	 */
+	public int[] scoreColumns(GameBoard gb) throws IllegalArgumentException {
+		if (!gb.getRules().equals(layout.getRules()))
+			throw new IllegalArgumentException("Board " + gb.getRules() + " is not " + layout.getRules());
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		if (layout.isWin(x) || layout.isWin(o))
+			throw new IllegalArgumentException("The game is already won");
+		int moves = gb.getMoveCount();
+		return scoreColumns(moves % 2 == 0 ? x : o, x | o, moves);
+	}
+
+	/**
+	 * Solves every column of a shared position
+	 *
+	 * @param position the position to solve
+	 * @return score of each 0-based column for the player to move, INVALID for
+	 *         full columns
+	 * @throws IllegalArgumentException if the position has other rules or a
+	 *                                  winner
+	 */
+	public int[] scoreColumns(Position position) throws IllegalArgumentException {
+		if (!position.getRules().equals(layout.getRules()))
+			throw new IllegalArgumentException("Position " + position.getRules() + " is not " + layout.getRules());
+		if (position.isWon())
+			throw new IllegalArgumentException("The game is already won");
+		return scoreColumns(position.getCurrent(), position.getMask(), position.getMoveCount());
+	}
+
+	/**
+	 * Solves every column of a position, one root move per task
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param moves   number of tokens on the board
+	 * @return score of each 0-based column for the player to move, INVALID for
+	 *         full columns
+	 */
+	public int[] scoreColumns(long current, long mask, int moves) {
+		int cols = layout.getRules().getCols();
+		int[] scores = new int[cols];
+		RootMove[] tasks = new RootMove[cols];
+		int n = 0;
+		for (int col : layout.centerOrder()) {
+			long bit = layout.moveBit(mask, col);
+			if (bit == 0)
+				scores[col] = INVALID;
+			else if (layout.isWin(current | bit))
+				scores[col] = (cells + 1 - moves) / 2;
+			else
+				tasks[n++] = new RootMove(mask ^ current, mask | bit, moves + 1, col);
+		}
+		RootMove[] pending = Arrays.copyOf(tasks, n);
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(pending);
+			}
+		});
+		long total = 0;
+		for (RootMove task : pending) {
+			scores[task.col] = -task.score;
+			total += task.nodes;
+		}
+		nodes = total;
+		if (store != null) {
+			store.put(current, mask, best(scores));
+			store.flush();
+		}
+		return scores;
+	}
+
+	/**
+	 * Chooses the column with the best exact score, the most central one on a
+	 * tie
+	 *
+	 * @param gb The board to solve, left unchanged
+	 * @return 0-based column, -1 if the board is full
+	 * @throws IllegalArgumentException if the board has other rules or a winner
+	 */
+	public int bestMove(GameBoard gb) throws IllegalArgumentException {
+		int[] scores = scoreColumns(gb);
+		int best = -1;
+		for (int col : layout.centerOrder()) {
+			if (scores[col] != INVALID && (best < 0 || scores[col] > scores[best]))
+				best = col;
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the outcome a score stands for
+	 *
+	 * @param score solver score for the player to move
+	 * @return 1 for a win, 0 for a draw, -1 for a loss
+	 */
+	public static int outcome(int score) {
+		return Integer.signum(score);
+	}
+
+	/**
+	 * Returns the number of moves left in the game with perfect play, counting
+	 * the winning move
+	 *
+	 * @param score solver score for the player to move
+	 * @param moves number of tokens on the board
+	 * @return moves until the game ends in a win, loss or full board
+	 */
+	public int pliesToEnd(int score, int moves) {
+		if (score == 0)
+			return cells - moves;
+		// the winner's last token is dropped when n tokens are on the board,
+		// with (cells + 1 - n) / 2 == |score| and n of the winner's parity
+		int parity = score > 0 ? moves & 1 : (moves + 1) & 1;
+		int n = cells + 1 - 2 * Math.abs(score);
+		if ((n & 1) != parity)
+			n--;
+		return n - moves + 1;
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Solves one root move on the worker's own search
+	 */
+	private class RootMove extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final long current;
+		private final long mask;
+		private final int moves;
+		private final int col;
+		private int score;
+		private long nodes;
+
+		RootMove(long current, long mask, int moves, int col) {
+			this.current = current;
+			this.mask = mask;
+			this.moves = moves;
+			this.col = col;
+		}
+
+		@Override
+		protected void compute() {
+			Search search = searches.get();
+			search.nodes = 0;
+			score = search.solve(current, mask, moves);
+			nodes = search.nodes;
+		}
+	}
+
+	/**
+	 * Search state of one thread
+	 */
+	private final class Search {
+		private final long[][] moveBits = new long[cells + 1][layout.getRules().getCols()];
+		private final int[][] moveScores = new int[cells + 1][layout.getRules().getCols()];
+		private long nodes;
+
+		/**
+		 * Narrows the score range with null-window searches, trying the middle
+		 * of the range first but leaning towards 0 for quick draw proofs
+		 */
+		int solve(long current, long mask, int moves) {
+			if (moves == cells)
+				return 0;
+			if ((layout.threatCells(current, mask) & layout.possible(mask)) != 0)
+				return (cells + 1 - moves) / 2;
+			if (store != null) {
+				int stored = store.get(current, mask);
+				if (stored != Integer.MIN_VALUE)
+					return stored;
+			}
+			int min = -(cells - moves) / 2;
+			int max = (cells + 1 - moves) / 2;
+			while (min < max) {
+				int med = min + (max - min) / 2;
+				if (med <= 0 && min / 2 < med)
+					med = min / 2;
+				else if (med >= 0 && max / 2 > med)
+					med = max / 2;
+				int r = negamax(current, mask, moves, med, med + 1);
+				if (r <= med)
+					max = r;
+				else
+					min = r;
+			}
+			if (store != null)
+				store.put(current, mask, min);
+			return min;
+		}
+
+		/**
+		 * Scores a position in which the player to move cannot win at once
+		 *
+		 * @return the exact score if it is inside the window, otherwise a bound
+		 *         on the side of the window it falls
+		 */
+		private int negamax(long current, long mask, int moves, int alpha, int beta) {
+			nodes++;
+			long next = nonLosingMoves(current, mask);
+			if (next == 0)
+				return -(cells - moves) / 2;
+			if (moves >= cells - 2)
+				return 0;
+
+			int min = -(cells - 2 - moves) / 2;
+			if (alpha < min) {
+				alpha = min;
+				if (alpha >= beta)
+					return alpha;
+			}
+			int max = (cells - 1 - moves) / 2;
+			long key = TranspositionTable.key(current, mask);
+			long entry = tt.probe(key);
+			if (entry != 0) {
+				int score = TranspositionTable.score(entry);
+				if (TranspositionTable.bound(entry) == TranspositionTable.LOWER) {
+					if (alpha < score) {
+						alpha = score;
+						if (alpha >= beta)
+							return alpha;
+					}
+				} else if (score < max) {
+					max = score;
+				}
+			}
+			if (beta > max) {
+				beta = max;
+				if (alpha >= beta)
+					return beta;
+			}
+
+			// most threats first, ties center first
+			long[] bits = moveBits[moves];
+			int[] scores = moveScores[moves];
+			int n = 0;
+			for (int col : layout.centerOrder()) {
+				long bit = next & layout.columnMask(col);
+				if (bit == 0)
+					continue;
+				int score = Long.bitCount(layout.threatCells(current | bit, mask));
+				int i = n++;
+				for (; i > 0 && scores[i - 1] < score; i--) {
+					bits[i] = bits[i - 1];
+					scores[i] = scores[i - 1];
+				}
+				bits[i] = bit;
+				scores[i] = score;
+			}
+			for (int i = 0; i < n; i++) {
+				long bit = bits[i];
+				int score = -negamax(mask ^ current, mask | bit, moves + 1, -beta, -alpha);
+				if (score >= beta) {
+					tt.store(key, score, cells - moves, TranspositionTable.LOWER, -1);
+					return score;
+				}
+				if (score > alpha)
+					alpha = score;
+			}
+			tt.store(key, alpha, cells - moves, TranspositionTable.UPPER, -1);
+			return alpha;
+		}
+
+		/**
+		 * Returns the moves that do not let the opponent win on the next move:
+		 * a forced block if the opponent has one threat, none if it has two,
+		 * and never a cell directly below an opponent threat
+		 */
+		private long nonLosingMoves(long current, long mask) {
+			long possible = layout.possible(mask);
+			long opponentWins = layout.threatCells(mask ^ current, mask);
+			long forced = possible & opponentWins;
+			if (forced != 0) {
+				if ((forced & (forced - 1)) != 0)
+					return 0;
+				possible = forced;
+			}
+			return possible & ~(opponentWins >>> 1);
+		}
+	}
+
+	/**
+	 * Solves positions given as 1-based column sequences, such as 4453, and
+	 * prints the outcome, the distance to the end and the time taken. Solved
+	 * positions are kept in the default store.
+	 *
+	 * @param args move sequences, the empty board if none are given
+	 */
+	public static void main(String[] args) {
+		Connect4Solver solver = new Connect4Solver(Connect4Rules.STANDARD);
+		SolvedPositionStore store = SolvedPositionStore.openDefault();
+		solver.setStore(store);
+		String[] positions = args.length > 0 ? args : new String[] { "" };
+		for (String position : positions) {
+			Connect4 game = new Connect4();
+			GameBoard gb = game.getGameBoard();
+			for (int i = 0; i < position.length(); i++)
+				gb.setToken(position.charAt(i) - '0', i % 2 == 0 ? 'X' : 'O');
+			long start = System.nanoTime();
+			int[] scores = solver.scoreColumns(gb);
+			long ms = (System.nanoTime() - start) / 1000000;
+			int best = best(scores);
+			String[] outcomes = { "loss", "draw", "win" };
+			StringBuilder columns = new StringBuilder();
+			for (int score : scores)
+				columns.append(score == INVALID ? " -" : " " + score);
+			System.out.printf("%-12s %s in %d  columns%s  %,d nodes  %d ms%n", position.isEmpty() ? "(start)" : position,
+					outcomes[outcome(best) + 1], solver.pliesToEnd(best, gb.getMoveCount()), columns,
+					solver.getNodes(), ms);
+		}
+		if (store != null)
+			store.close();
+		solver.shutdown();
+	}
+}
@@ -0,0 +1,491 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import core.Connect4.Connect4Constants;
+
+/**
+ * One end of a connection between Connect4Server and Connect4Client. The
+ * methods follow the game: the server sends a player number, a start signal,
+ * the result of each move and each game status with the opponent's move, and
+ * the client sends its moves and receives the same. Both protocols below
+ * carry exactly these messages; only their encoding differs.
+ * <ul>
+ * <li>Legacy: the client sends a boolean, true for a two-player game, then
+ * every message is one or more 4 byte ints, a move being a row and a
+ * column.</li>
+ * <li>Compact, version 1: the client sends one byte, HELLO with the version
+ * in bits 1 to 5 and the boolean in bit 0, and the server answers HELLO with
+ * the version it speaks. Every message is then one byte: a move is its column, a result the row played or
+ * 0xFF for a refused move, and a status holds the status in its top 3 bits
+ * and the column of the move that came with it in the low 5, which holds any
+ * column up to Connect4Rules.MAX_COLS. The row of that move follows from the
+ * board, which both ends keep.</li>
+ * </ul>
+ * Both protocols are buffered and flushed once per message on a socket with
+ * TCP_NODELAY, so a message is one segment and never waits for the
+ * acknowledgement of the one before.
+ * <p>
+ * A legacy client sends 0 or 1 first, never HELLO, so the server tells them
+ * apart from the first byte. A server from before the compact protocol reads
+ * the hello as true, the single byte of a boolean, and answers with the first
+ * byte of a player number, which is 0, and the client carries on in the
+ * legacy protocol. Such a server cannot
+ * tell that a client asking for a computer game with HELLO did not want a
+ * two-player game, so clients of old servers should ask for the legacy
+ * protocol.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ * @see Connect4Client
+ */
+public abstract class Connect4Wire implements Connect4Constants {
+	/** Top bits of the compact handshake and its answer */
+	public static final int HELLO = 0xC0;
+	/** Version of the protocol that sends every value as an int */
+	public static final int LEGACY = 0;
+	/** Version of the protocol that sends every message as one byte */
+	public static final int COMPACT = 1;
+
+	private static final int REFUSED = 0xFF;
+
+	protected final Socket socket;
+	protected final DataInputStream in;
+	protected final DataOutputStream out;
+	private final boolean playerGame;
+
+	private Connect4Wire(Socket socket, DataInputStream in, DataOutputStream out, boolean playerGame) {
+		this.socket = socket;
+		this.in = in;
+		this.out = out;
+		this.playerGame = playerGame;
+	}
+
+	/**
+	 * Reads a client's handshake and answers it in the protocol the client
+	 * asked for
+	 *
+	 * @param socket accepted connection
+	 * @return the server's end of the connection
+	 * @throws IOException if the handshake cannot be read or is not one of
+	 *                     the protocols
+	 */
+	public static Connect4Wire accept(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		int first = in.readUnsignedByte();
+		int version = handshakeVersion(first);
+		if (version < 0)
+			throw new IOException("Unknown handshake " + first);
+		if (version == LEGACY)
+			return new Legacy(socket, in, out, first == 1);
+		out.writeByte(handshakeAnswer());
+		out.flush();
+		return new Compact(socket, in, out, (first & 1) != 0);
+	}
+
+	/**
+	 * Reads the protocol from the first byte a client sends. Bit 0 of the
+	 * byte is the boolean in both protocols.
+	 *
+	 * @param first the client's first byte
+	 * @return LEGACY or COMPACT, -1 if it is neither handshake
+	 */
+	static int handshakeVersion(int first) {
+		if (first == 0 || first == 1)
+			return LEGACY;
+		// a newer client speaks every older version
+		if ((first & HELLO) == HELLO && (first >>> 1 & 0x1F) >= COMPACT)
+			return COMPACT;
+		return -1;
+	}
+
+	/**
+	 * Returns the server's answer to a compact handshake
+	 *
+	 * @return HELLO with the version the server speaks
+	 */
+	static int handshakeAnswer() {
+		return hello(COMPACT, false);
+	}
+
+	/**
+	 * Packs the answer to a move into one compact byte
+	 *
+	 * @param row row played, -1 for a refused move
+	 * @return the byte
+	 */
+	static int compactResult(int row) {
+		return row < 0 ? REFUSED : row;
+	}
+
+	/**
+	 * Packs a game status and the column of the move that came with it into
+	 * one compact byte
+	 *
+	 * @param status PLAYER1_WON, PLAYER2_WON, DRAW or CONTINUE
+	 * @param column 0-based column, 0 if no move came with the status
+	 * @return the byte
+	 */
+	static int compactStatus(int status, int column) {
+		return status << 5 | column;
+	}
+
+	/**
+	 * Sends the handshake for a game, falling back to the legacy protocol if
+	 * the server does not answer the compact handshake
+	 *
+	 * @param socket     connection to the server
+	 * @param playerGame true to play another player, false to play the
+	 *                   computer
+	 * @param compact    true to offer the compact protocol, false to speak the
+	 *                   legacy protocol
+	 * @return the client's end of the connection
+	 * @throws IOException if the handshake fails
+	 */
+	public static Connect4Wire connect(Socket socket, boolean playerGame, boolean compact) throws IOException {
+		socket.setTcpNoDelay(true);
+		BufferedInputStream buffered = new BufferedInputStream(socket.getInputStream());
+		DataInputStream in = new DataInputStream(buffered);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (!compact) {
+			out.writeBoolean(playerGame);
+			out.flush();
+			return new Legacy(socket, in, out, playerGame);
+		}
+		out.writeByte(hello(COMPACT, playerGame));
+		out.flush();
+		buffered.mark(1);
+		int first = in.readUnsignedByte();
+		if ((first & HELLO) == HELLO) {
+			if (first != handshakeAnswer())
+				throw new IOException("Unknown handshake answer " + first);
+			return new Compact(socket, in, out, playerGame);
+		}
+		if (first != 0)
+			throw new IOException("Unknown handshake answer " + first);
+		// an older server took the hello for a two-player game and sent a player number
+		buffered.reset();
+		return new Legacy(socket, in, out, true);
+	}
+
+	/**
+	 * Packs a compact handshake into one byte, so that a server reading a
+	 * boolean reads all of it
+	 */
+	private static int hello(int version, boolean playerGame) {
+		return HELLO | version << 1 | (playerGame ? 1 : 0);
+	}
+
+	/**
+	 * Returns the protocol version spoken
+	 *
+	 * @return LEGACY or COMPACT
+	 */
+	public abstract int getVersion();
+
+	/**
+	 * Checks which game the client asked for
+	 *
+	 * @return true for a game against another player
+	 */
+	public boolean isPlayerGame() {
+		return playerGame;
+	}
+
+	/**
+	 * Returns the connection
+	 *
+	 * @return the socket
+	 */
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Closes the connection
+	 *
+	 * @throws IOException if the socket cannot be closed
+	 */
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Tells the client which player it is
+	 *
+	 * @param player PLAYER1 or PLAYER2
+	 * @throws IOException if the message cannot be sent
+	 */
+	public abstract void sendPlayer(int player) throws IOException;
+
+	/**
+	 * Tells player 1 that the game starts
+	 *
+	 * @throws IOException if the message cannot be sent
+	 */
+	public abstract void sendStart() throws IOException;
+
+	/**
+	 * Answers the client's move
+	 *
+	 * @param row row the token landed on, -1 if the move was refused
+	 * @throws IOException if the message cannot be sent
+	 */
+	public abstract void sendResult(int row) throws IOException;
+
+	/**
+	 * Sends a game status without a move
+	 *
+	 * @param status PLAYER1_WON, PLAYER2_WON, DRAW or CONTINUE
+	 * @throws IOException if the message cannot be sent
+	 */
+	public abstract void sendStatus(int status) throws IOException;
+
+	/**
+	 * Sends a game status with the opponent's move that led to it
+	 *
+	 * @param status PLAYER1_WON, PLAYER2_WON, DRAW or CONTINUE
+	 * @param row    row of the opponent's move
+	 * @param column 0-based column of the opponent's move
+	 * @throws IOException if the message cannot be sent
+	 */
+	public abstract void sendStatus(int status, int row, int column) throws IOException;
+
+	/**
+	 * Reads the client's next move
+	 *
+	 * @return 0-based column, not yet checked
+	 * @throws IOException if the move cannot be read
+	 */
+	public abstract int readColumn() throws IOException;
+
+	/**
+	 * Reads which player the server made this client
+	 *
+	 * @return PLAYER1 or PLAYER2
+	 * @throws IOException if the message cannot be read
+	 */
+	public abstract int receivePlayer() throws IOException;
+
+	/**
+	 * Waits for the server's start signal, sent to player 1 once player 2 has
+	 * joined
+	 *
+	 * @throws IOException if the message cannot be read
+	 */
+	public abstract void receiveStart() throws IOException;
+
+	/**
+	 * Sends a move
+	 *
+	 * @param row    row the client expects the token on
+	 * @param column 0-based column
+	 * @throws IOException if the message cannot be sent
+	 */
+	public abstract void sendMove(int row, int column) throws IOException;
+
+	/**
+	 * Reads the server's answer to the move sent
+	 *
+	 * @return row played, negative if the move was refused
+	 * @throws IOException if the message cannot be read
+	 */
+	public abstract int receiveResult() throws IOException;
+
+	/**
+	 * Reads a game status
+	 *
+	 * @return PLAYER1_WON, PLAYER2_WON, DRAW or CONTINUE
+	 * @throws IOException if the message cannot be read
+	 */
+	public abstract int receiveStatus() throws IOException;
+
+	/**
+	 * Reads the opponent's move that came with the last status
+	 *
+	 * @return 0-based column
+	 * @throws IOException if the message cannot be read
+	 */
+	public abstract int receiveColumn() throws IOException;
+
+	/**
+	 * Every value an int, as the server and client first spoke
+	 */
+	private static final class Legacy extends Connect4Wire {
+		Legacy(Socket socket, DataInputStream in, DataOutputStream out, boolean playerGame) {
+			super(socket, in, out, playerGame);
+		}
+
+		@Override
+		public int getVersion() {
+			return LEGACY;
+		}
+
+		@Override
+		public void sendPlayer(int player) throws IOException {
+			out.writeInt(player);
+			out.flush();
+		}
+
+		@Override
+		public void sendStart() throws IOException {
+			// Write anything to notify player 1 to start
+			out.writeInt(1);
+			out.flush();
+		}
+
+		@Override
+		public void sendResult(int row) throws IOException {
+			out.writeInt(row);
+			out.flush();
+		}
+
+		@Override
+		public void sendStatus(int status) throws IOException {
+			out.writeInt(status);
+			out.flush();
+		}
+
+		@Override
+		public void sendStatus(int status, int row, int column) throws IOException {
+			out.writeInt(status);
+			out.writeInt(row);
+			out.writeInt(column);
+			out.flush();
+		}
+
+		@Override
+		public int readColumn() throws IOException {
+			in.readInt(); // the row is decided by the board
+			return in.readInt();
+		}
+
+		@Override
+		public int receivePlayer() throws IOException {
+			return in.readInt();
+		}
+
+		@Override
+		public void receiveStart() throws IOException {
+			in.readInt(); // Whatever read is ignored
+		}
+
+		@Override
+		public void sendMove(int row, int column) throws IOException {
+			out.writeInt(row);
+			out.writeInt(column);
+			out.flush();
+		}
+
+		@Override
+		public int receiveResult() throws IOException {
+			return in.readInt();
+		}
+
+		@Override
+		public int receiveStatus() throws IOException {
+			return in.readInt();
+		}
+
+		@Override
+		public int receiveColumn() throws IOException {
+			in.readInt();
+			return in.readInt();
+		}
+	}
+
+	/**
+	 * Every message one byte
+	 */
+	private static final class Compact extends Connect4Wire {
+		private int lastColumn = -1;
+
+		Compact(Socket socket, DataInputStream in, DataOutputStream out, boolean playerGame) {
+			super(socket, in, out, playerGame);
+		}
+
+		@Override
+		public int getVersion() {
+			return COMPACT;
+		}
+
+		@Override
+		public void sendPlayer(int player) throws IOException {
+			out.writeByte(player);
+			out.flush();
+		}
+
+		@Override
+		public void sendStart() throws IOException {
+			out.writeByte(1);
+			out.flush();
+		}
+
+		@Override
+		public void sendResult(int row) throws IOException {
+			out.writeByte(compactResult(row));
+			out.flush();
+		}
+
+		@Override
+		public void sendStatus(int status) throws IOException {
+			out.writeByte(compactStatus(status, 0));
+			out.flush();
+		}
+
+		@Override
+		public void sendStatus(int status, int row, int column) throws IOException {
+			out.writeByte(compactStatus(status, column));
+			out.flush();
+		}
+
+		@Override
+		public int readColumn() throws IOException {
+			return in.readUnsignedByte();
+		}
+
+		@Override
+		public int receivePlayer() throws IOException {
+			return in.readUnsignedByte();
+		}
+
+		@Override
+		public void receiveStart() throws IOException {
+			in.readUnsignedByte();
+		}
+
+		@Override
+		public void sendMove(int row, int column) throws IOException {
+			if (column < 0 || column > 0xFF)
+				throw new IllegalArgumentException("Column " + column + " does not fit in a byte");
+			out.writeByte(column);
+			out.flush();
+		}
+
+		@Override
+		public int receiveResult() throws IOException {
+			int row = in.readUnsignedByte();
+			return row == REFUSED ? -1 : row;
+		}
+
+		@Override
+		public int receiveStatus() throws IOException {
+			int frame = in.readUnsignedByte();
+			lastColumn = frame & 0x1F;
+			return frame >>> 5;
+		}
+
+		@Override
+		public int receiveColumn() {
+			return lastColumn;
+		}
+	}
+}
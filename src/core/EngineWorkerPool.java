@@ -0,0 +1,252 @@
+package core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of worker threads, one per core, that computes the computer
+ * moves of every session. Sessions queue their searches and wait for the
+ * result, so only the workers run engine code however many games are open.
+ * <p>
+ * Requests are served by priority, FAST before NORMAL before BACKGROUND, and
+ * in arrival order within a priority. A worker takes one request at a time,
+ * so an urgent request waits for at most the searches already running. The
+ * queue is bounded: submit waits for room, which slows the sessions down
+ * instead of letting the backlog grow.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ * @see SearchBudget
+ */
+public class EngineWorkerPool {
+	/** Priority of short searches, such as casual levels */
+	public static final int FAST = 0;
+	/** Priority of ordinary computer moves */
+	public static final int NORMAL = 1;
+	/** Priority of work nobody is waiting for, such as analysis */
+	public static final int BACKGROUND = 2;
+
+	private final PriorityBlockingQueue<Request<?>> queue = new PriorityBlockingQueue<Request<?>>();
+	private final Semaphore room;
+	private final Thread[] workers;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	/** Held to queue a request or shut down, so no request is queued after the drain */
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a pool with one worker per core and room for 64 requests per
+	 * worker
+	 */
+	public EngineWorkerPool() {
+		this(Runtime.getRuntime().availableProcessors(), 64 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a pool
+	 *
+	 * @param threads  worker threads
+	 * @param capacity requests that may wait in the queue
+	 * @throws IllegalArgumentException if threads or capacity is below 1
+	 */
+	public EngineWorkerPool(int threads, int capacity) throws IllegalArgumentException {
+		if (threads < 1 || capacity < 1)
+			throw new IllegalArgumentException("Need a worker and room for a request");
+		room = new Semaphore(capacity);
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::work, "engine-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * A queued search, ordered by priority then arrival
+	 */
+	private static final class Request<T> implements Comparable<Request<?>> {
+		private final int priority;
+		private final long sequence;
+		private final long queued = System.nanoTime();
+		private final Callable<T> task;
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		Request(int priority, long sequence, Callable<T> task) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Request<?> o) {
+			return priority != o.priority ? Integer.compare(priority, o.priority) : Long.compare(sequence, o.sequence);
+		}
+
+		void run() {
+			if (result.isDone())
+				return;
+			try {
+				result.complete(task.call());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Queues a search, waiting while the queue is full
+	 *
+	 * @param <T>      result type
+	 * @param priority FAST, NORMAL or BACKGROUND
+	 * @param task     the search, run on a worker thread
+	 * @return the result, completed exceptionally if the task throws
+	 * @throws InterruptedException       if interrupted while waiting for room
+	 * @throws RejectedExecutionException if the pool is shut down
+	 */
+	public <T> CompletableFuture<T> submit(int priority, Callable<T> task)
+			throws InterruptedException, RejectedExecutionException {
+		if (!room.tryAcquire()) {
+			blocked.incrementAndGet();
+			room.acquire();
+		}
+		return enqueue(priority, task);
+	}
+
+	/**
+	 * Queues a search, giving up if the queue stays full
+	 *
+	 * @param <T>           result type
+	 * @param priority      FAST, NORMAL or BACKGROUND
+	 * @param task          the search, run on a worker thread
+	 * @param timeoutMillis longest wait for room in the queue
+	 * @return the result, completed exceptionally if the task throws
+	 * @throws InterruptedException       if interrupted while waiting for room
+	 * @throws RejectedExecutionException if the queue is still full after the
+	 *                                    timeout or the pool is shut down
+	 */
+	public <T> CompletableFuture<T> submit(int priority, Callable<T> task, long timeoutMillis)
+			throws InterruptedException, RejectedExecutionException {
+		if (!room.tryAcquire()) {
+			blocked.incrementAndGet();
+			if (!room.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				rejected.incrementAndGet();
+				throw new RejectedExecutionException("Engine queue is full");
+			}
+		}
+		return enqueue(priority, task);
+	}
+
+	private <T> CompletableFuture<T> enqueue(int priority, Callable<T> task) {
+		if (priority < FAST || priority > BACKGROUND) {
+			room.release();
+			throw new IllegalArgumentException("Unknown priority " + priority);
+		}
+		lock.lock();
+		try {
+			if (shutdown) {
+				room.release();
+				rejected.incrementAndGet();
+				throw new RejectedExecutionException("Engine pool is shut down");
+			}
+			Request<T> request = new Request<T>(priority, sequence.getAndIncrement(), task);
+			submitted.incrementAndGet();
+			queue.add(request);
+			return request.result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Worker loop: takes the most urgent request and runs it
+	 */
+	private void work() {
+		while (!shutdown) {
+			Request<?> request;
+			try {
+				request = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			room.release();
+			waitNanos.addAndGet(System.nanoTime() - request.queued);
+			request.run();
+			completed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of worker threads
+	 *
+	 * @return workers
+	 */
+	public int getWorkers() {
+		return workers.length;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a worker
+	 *
+	 * @return queue length
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns how often submit had to wait for room in the queue
+	 *
+	 * @return backpressure count
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/**
+	 * Returns how many requests were turned away
+	 *
+	 * @return rejection count
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Stops the workers once their current requests are done. Requests still
+	 * queued are completed with a RejectedExecutionException.
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+		} finally {
+			lock.unlock();
+		}
+		for (Thread worker : workers)
+			worker.interrupt();
+		for (Request<?> request; (request = queue.poll()) != null;) {
+			room.release();
+			request.result.completeExceptionally(new RejectedExecutionException("Engine pool is shut down"));
+		}
+	}
+
+	@Override
+	public String toString() {
+		long done = completed.get();
+		return String.format("%d workers, %d queued, %d done, %d waited for room, %d rejected, mean queue wait %.1f ms",
+				workers.length, queue.size(), done, blocked.get(), rejected.get(),
+				done == 0 ? 0 : waitNanos.get() / 1e6 / done);
+	}
+}
@@ -0,0 +1,179 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Matchmaking lobby. Players who want a game are paired with a player
+ * waiting in the same bucket, or wait there themselves. Buckets keep apart
+ * players who should not meet, such as players of different board variants
+ * or of very different ratings.
+ * <p>
+ * Joining only takes the bucket's lock for as long as it takes to add or
+ * remove one player, so pairing is immediate and never waits on a client.
+ * Whether a waiting player is still there is checked outside the lock, and
+ * a player who has gone is dropped and the next one tried.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @param <T> the waiting players, such as their sockets
+ * @see Connect4Server
+ */
+public class Lobby<T> {
+	/** Ratings within one band of this width wait in the same bucket */
+	public static final int RATING_BAND = 200;
+
+	private final ConcurrentHashMap<Bucket, Deque<T>> buckets = new ConcurrentHashMap<Bucket, Deque<T>>();
+	private final Predicate<T> present;
+	private final AtomicLong joined = new AtomicLong();
+	private final AtomicLong paired = new AtomicLong();
+	private final AtomicLong gone = new AtomicLong();
+
+	/**
+	 * Creates a lobby
+	 *
+	 * @param present check that a waiting player is still connected, called
+	 *                before the player is paired
+	 */
+	public Lobby(Predicate<T> present) {
+		this.present = present;
+	}
+
+	/**
+	 * Where a player waits: a board variant and, for rated games, a band of
+	 * ratings
+	 */
+	public static final class Bucket {
+		private final Connect4Rules rules;
+		private final int band;
+
+		private Bucket(Connect4Rules rules, int band) {
+			this.rules = rules;
+			this.band = band;
+		}
+
+		/**
+		 * Returns the bucket of unrated games on a board
+		 *
+		 * @param rules board geometry and winning run length
+		 * @return the bucket
+		 */
+		public static Bucket of(Connect4Rules rules) {
+			return new Bucket(rules, Integer.MIN_VALUE);
+		}
+
+		/**
+		 * Returns the bucket of rated games on a board for a rating
+		 *
+		 * @param rules  board geometry and winning run length
+		 * @param rating the player's rating
+		 * @return the bucket of the rating's band
+		 */
+		public static Bucket of(Connect4Rules rules, int rating) {
+			return new Bucket(rules, Math.floorDiv(rating, RATING_BAND));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Bucket))
+				return false;
+			Bucket b = (Bucket) o;
+			return band == b.band && rules.equals(b.rules);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * rules.hashCode() + band;
+		}
+
+		@Override
+		public String toString() {
+			return band == Integer.MIN_VALUE ? rules.toString()
+					: rules + " rated " + band * RATING_BAND + "-" + (band * RATING_BAND + RATING_BAND - 1);
+		}
+	}
+
+	/**
+	 * Pairs a player with the longest waiting player of the bucket, or leaves
+	 * the player waiting if there is none
+	 *
+	 * @param bucket where the player waits
+	 * @param player the player joining
+	 * @return the opponent, or null if the player now waits
+	 */
+	public T join(Bucket bucket, T player) {
+		joined.incrementAndGet();
+		while (true) {
+			Object[] opponent = new Object[1];
+			// the map locks the bucket only while it is changed
+			buckets.compute(bucket, (b, waiting) -> {
+				if (waiting == null || waiting.isEmpty()) {
+					Deque<T> queue = waiting == null ? new ArrayDeque<T>() : waiting;
+					queue.addLast(player);
+					return queue;
+				}
+				opponent[0] = waiting.pollFirst();
+				return waiting.isEmpty() ? null : waiting;
+			});
+			@SuppressWarnings("unchecked")
+			T found = (T) opponent[0];
+			if (found == null)
+				return null;
+			if (present.test(found)) {
+				paired.incrementAndGet();
+				return found;
+			}
+			gone.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes a waiting player out of the lobby, for example when it
+	 * disconnects
+	 *
+	 * @param bucket where the player waits
+	 * @param player the player leaving
+	 * @return true if the player was waiting
+	 */
+	public boolean leave(Bucket bucket, T player) {
+		boolean[] removed = new boolean[1];
+		buckets.computeIfPresent(bucket, (b, waiting) -> {
+			removed[0] = waiting.remove(player);
+			return waiting.isEmpty() ? null : waiting;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Returns the number of players waiting in a bucket
+	 *
+	 * @param bucket the bucket
+	 * @return waiting players
+	 */
+	public int getWaiting(Bucket bucket) {
+		int[] n = new int[1];
+		buckets.computeIfPresent(bucket, (b, waiting) -> {
+			n[0] = waiting.size();
+			return waiting;
+		});
+		return n[0];
+	}
+
+	/**
+	 * Returns the number of pairs made
+	 *
+	 * @return games started
+	 */
+	public long getPaired() {
+		return paired.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d joined, %d paired, %d left before a game, %d buckets", joined.get(), paired.get(),
+				gone.get(), buckets.size());
+	}
+}
@@ -0,0 +1,374 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Monte Carlo Tree Search player, a cheaper alternative to Connect4Engine
+ * whose strength scales with the number of playouts. Each tree keeps its nodes
+ * in preallocated primitive arrays and plays random games on two masks, so a
+ * search allocates nothing. Between moves the tree is re-rooted at the new
+ * position and keeps the statistics of that subtree.
+ * <p>
+ * With more than one thread every thread grows its own tree in batches of
+ * playouts and the root visit counts are added up.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4ComputerPlayer
+ */
+public class MonteCarloEngine {
+	/** Nodes per tree used when none is given */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	private static final int BATCH = 256;
+
+	private final BitboardLayout layout;
+	private final Tree[] trees;
+	private final ExecutorService executor;
+	private long playoutLimit = 20000;
+	private long timeLimit;
+	private long playouts;
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates a single-threaded engine
+	 *
+	 * @param rules Board geometry and winning run length
+	 */
+	public MonteCarloEngine(Connect4Rules rules) {
+		this(rules, 1, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an engine
+	 *
+	 * @param rules    Board geometry and winning run length
+	 * @param threads  number of trees searched in parallel
+	 * @param capacity nodes per tree
+	 * @throws IllegalArgumentException if the board does not fit in 64 bits
+	 */
+	public MonteCarloEngine(Connect4Rules rules, int threads, int capacity) throws IllegalArgumentException {
+		if (threads < 1 || capacity < rules.getCols() + 1)
+			throw new IllegalArgumentException("Need at least one thread and room for the root's children");
+		layout = BitboardLayout.of(rules);
+		trees = new Tree[threads];
+		for (int i = 0; i < threads; i++)
+			trees[i] = new Tree(capacity, 0x9E3779B97F4A7C15L * (i + 1));
+		executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "mcts");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Sets the number of playouts per move, shared by all threads
+	 *
+	 * @param playoutLimit playouts per move, at least 1
+	 */
+	public void setPlayoutLimit(long playoutLimit) {
+		if (playoutLimit < 1)
+			throw new IllegalArgumentException("Playout limit must be at least 1");
+		this.playoutLimit = playoutLimit;
+	}
+
+	/**
+	 * Sets the wall-clock budget per move
+	 *
+	 * @param millis time limit in milliseconds, 0 for no limit
+	 */
+	public void setTimeLimit(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Time limit must not be negative");
+		this.timeLimit = millis;
+	}
+
+	/**
+	 * Cancels the running search and every later one until resume is called.
+	 * Cancelled searches stop within one batch of playouts and answer with the
+	 * statistics gathered so far. May be called from another thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Lets searches run again after cancel
+	 */
+	public void resume() {
+		cancelled = false;
+	}
+
+	/**
+	 * Returns the number of playouts run by the last search
+	 *
+	 * @return playout count
+	 */
+	public long getPlayouts() {
+		return playouts;
+	}
+
+	/**
+	 * Chooses a column for the player to move on the board. 'X' moves first.
+	 *
+	 * @param gb The board to search, left unchanged
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(GameBoard gb) {
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		int moves = gb.getMoveCount();
+		return bestMove(moves % 2 == 0 ? x : o, x | o);
+	}
+
+	/**
+	 * Chooses a column for the player to move
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(long current, long mask) {
+		if (layout.possible(mask) == 0)
+			return -1;
+		long wins = layout.winningMoves(current, mask);
+		if (wins != 0)
+			return layout.columnOf(wins & -wins);
+		long deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1000000L : 0;
+		long perTree = Math.max(1, playoutLimit / trees.length);
+		for (Tree tree : trees)
+			tree.reroot(current, mask);
+		if (executor == null) {
+			trees[0].search(perTree, deadline);
+		} else {
+			List<Future<?>> futures = new ArrayList<Future<?>>(trees.length);
+			for (Tree tree : trees) {
+				futures.add(executor.submit((Callable<Void>) () -> {
+					tree.search(perTree, deadline);
+					return null;
+				}));
+			}
+			try {
+				for (Future<?> f : futures)
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		long[] visits = new long[layout.getRules().getCols()];
+		playouts = 0;
+		for (Tree tree : trees)
+			playouts += tree.addRootVisits(visits);
+		int best = -1;
+		for (int col : layout.centerOrder()) {
+			if (layout.moveBit(mask, col) != 0 && (best < 0 || visits[col] > visits[best]))
+				best = col;
+		}
+		return best;
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	/**
+	 * One search tree. Scores are kept for the player who made the move into a
+	 * node: 2 per win, 1 per draw.
+	 */
+	private final class Tree {
+		private final long[] current;
+		private final long[] mask;
+		private final int[] parent;
+		private final int[] firstChild;
+		private final byte[] childCount;
+		private final byte[] column;
+		private final byte[] terminal; // 0 open, 1 mover won, 2 draw
+		private final int[] visits;
+		private final int[] score;
+		private int root;
+		private int size;
+		private long rng;
+
+		Tree(int capacity, long seed) {
+			current = new long[capacity];
+			mask = new long[capacity];
+			parent = new int[capacity];
+			firstChild = new int[capacity];
+			childCount = new byte[capacity];
+			column = new byte[capacity];
+			terminal = new byte[capacity];
+			visits = new int[capacity];
+			score = new int[capacity];
+			rng = seed;
+		}
+
+		/**
+		 * Moves the root to the position, keeping its subtree if the position is
+		 * the root or two moves below it at most. The tree starts over if the
+		 * position is not found or most of the pool is used.
+		 */
+		void reroot(long cur, long m) {
+			int found = size == 0 ? -1 : find(root, cur, m, 2);
+			if (found < 0 || size > current.length * 3 / 4) {
+				size = 0;
+				found = newNode(-1, cur, m, -1, 0);
+			}
+			root = found;
+			parent[root] = -1;
+		}
+
+		private int find(int node, long cur, long m, int depth) {
+			if (current[node] == cur && mask[node] == m)
+				return node;
+			if (depth == 0 || firstChild[node] < 0)
+				return -1;
+			for (int c = firstChild[node], end = c + childCount[node]; c < end; c++) {
+				if ((mask[c] & ~m) == 0) {
+					int found = find(c, cur, m, depth - 1);
+					if (found >= 0)
+						return found;
+				}
+			}
+			return -1;
+		}
+
+		void search(long limit, long deadline) {
+			for (long n = 0; n < limit;) {
+				for (int i = 0; i < BATCH && n < limit; i++, n++)
+					iterate();
+				if (cancelled || deadline != 0 && System.nanoTime() - deadline >= 0)
+					break;
+			}
+		}
+
+		/**
+		 * Selection, expansion, one random playout and backpropagation
+		 */
+		private void iterate() {
+			int node = root;
+			while (firstChild[node] >= 0 && terminal[node] == 0)
+				node = select(node);
+			if (terminal[node] == 0 && (visits[node] > 0 || node == root) && expand(node))
+				node = select(node);
+			int result = playout(node);
+			for (; node >= 0; node = parent[node]) {
+				visits[node]++;
+				score[node] += result;
+				result = 2 - result;
+			}
+		}
+
+		/**
+		 * Child with the best UCT value, unvisited children first
+		 */
+		private int select(int node) {
+			int best = -1;
+			double bestValue = -1;
+			double logN = Math.log(visits[node] + 1);
+			for (int c = firstChild[node], end = c + childCount[node]; c < end; c++) {
+				if (visits[c] == 0)
+					return c;
+				double value = score[c] / (2.0 * visits[c]) + 1.4 * Math.sqrt(logN / visits[c]);
+				if (value > bestValue) {
+					bestValue = value;
+					best = c;
+				}
+			}
+			return best;
+		}
+
+		private boolean expand(int node) {
+			long cur = current[node];
+			long m = mask[node];
+			long possible = layout.possible(m);
+			int n = Long.bitCount(possible);
+			if (size + n > current.length)
+				return false;
+			firstChild[node] = size;
+			childCount[node] = (byte) n;
+			for (long p = possible; p != 0; p &= p - 1) {
+				long bit = p & -p;
+				byte state = layout.isWin(cur | bit) ? (byte) 1 : layout.possible(m | bit) == 0 ? (byte) 2 : 0;
+				newNode(node, m ^ cur, m | bit, layout.columnOf(bit), state);
+			}
+			return true;
+		}
+
+		private int newNode(int from, long cur, long m, int col, int state) {
+			int n = size++;
+			current[n] = cur;
+			mask[n] = m;
+			parent[n] = from;
+			firstChild[n] = -1;
+			childCount[n] = 0;
+			column[n] = (byte) col;
+			terminal[n] = (byte) state;
+			visits[n] = 0;
+			score[n] = 0;
+			return n;
+		}
+
+		/**
+		 * Plays random moves from the node to the end of the game
+		 *
+		 * @return 2 if the player who moved into the node wins, 1 for a draw
+		 */
+		private int playout(int node) {
+			if (terminal[node] != 0)
+				return terminal[node] == 1 ? 2 : 1;
+			long cur = current[node];
+			long m = mask[node];
+			for (int side = 0;; side ^= 1) {
+				long possible = layout.possible(m);
+				if (possible == 0)
+					return 1;
+				long bit = randomBit(possible);
+				if (layout.isWin(cur | bit))
+					return side == 0 ? 0 : 2;
+				cur ^= m;
+				m |= bit;
+			}
+		}
+
+		/**
+		 * Picks one set bit of possible with xorshift64*
+		 */
+		private long randomBit(long possible) {
+			rng ^= rng >>> 12;
+			rng ^= rng << 25;
+			rng ^= rng >>> 27;
+			long r = (rng * 0x2545F4914F6CDD1DL) >>> 32;
+			int skip = (int) ((r * Long.bitCount(possible)) >>> 32);
+			for (; skip > 0; skip--)
+				possible &= possible - 1;
+			return possible & -possible;
+		}
+
+		/**
+		 * Adds the visit counts of the root's children by column
+		 *
+		 * @return playouts through the root
+		 */
+		long addRootVisits(long[] byColumn) {
+			if (firstChild[root] >= 0) {
+				for (int c = firstChild[root], end = c + childCount[root]; c < end; c++)
+					byColumn[column[c]] += visits[c];
+			}
+			return visits[root];
+		}
+	}
+}
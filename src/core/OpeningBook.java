@@ -0,0 +1,230 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Read-only opening book of best moves, memory-mapped from a file written by
+ * OpeningBookBuilder. Opening the book only maps the file, so startup does not
+ * depend on its size, and a lookup is a binary search over fixed-width
+ * records. Positions are stored once per mirror pair under the smaller key.
+ * <p>
+ * File layout, big-endian: a 16 byte header (magic, version, rows, cols,
+ * connect, plies, 2 reserved bytes, record count) followed by 12 byte records
+ * sorted by key (long key, short score, byte column, byte depth).
+ * <p>
+ * A book may be shared by any number of players and threads; the hit and
+ * miss counters are LongAdders, so concurrent lookups are all counted.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see OpeningBookBuilder
+ * @see Connect4ComputerPlayer
+ */
+public final class OpeningBook {
+	/** File the server and GUI load when it exists */
+	public static final String DEFAULT_FILE = "connect4.book";
+
+	static final int MAGIC = 0x43344F42; // "C4OB"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int RECORD_BYTES = 12;
+	private static final int WIN_BASE = 30000;
+
+	private final MappedByteBuffer buffer;
+	private final BitboardLayout layout;
+	private final int plies;
+	private final int count;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private OpeningBook(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not an opening book");
+		if (buffer.getShort(4) != VERSION)
+			throw new IOException("Unsupported opening book version " + buffer.getShort(4));
+		Connect4Rules rules = new Connect4Rules(buffer.get(6), buffer.get(7), buffer.get(8));
+		layout = BitboardLayout.of(rules);
+		plies = buffer.get(9);
+		count = buffer.getInt(12);
+		if (buffer.capacity() < HEADER_BYTES + (long) count * RECORD_BYTES)
+			throw new IOException("Opening book is truncated");
+	}
+
+	/**
+	 * Maps an opening book file
+	 *
+	 * @param file book written by OpeningBookBuilder
+	 * @return the book
+	 * @throws IOException if the file cannot be read or is not a book
+	 */
+	public static OpeningBook open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			// the mapping stays valid after the channel is closed
+			return new OpeningBook(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Maps DEFAULT_FILE from the working directory if it exists
+	 *
+	 * @return the book, null if there is no readable book
+	 */
+	public static OpeningBook openDefault() {
+		File file = new File(DEFAULT_FILE);
+		if (!file.isFile())
+			return null;
+		try {
+			return open(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the rules the book was built for
+	 *
+	 * @return board geometry and winning run length
+	 */
+	public Connect4Rules getRules() {
+		return layout.getRules();
+	}
+
+	/**
+	 * Returns the number of moves from the start covered by the book
+	 *
+	 * @return book depth in plies
+	 */
+	public int getPlies() {
+		return plies;
+	}
+
+	/**
+	 * Returns the number of positions in the book
+	 *
+	 * @return record count
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Looks up the best move of the player to move on the board
+	 *
+	 * @param gb The board to look up
+	 * @return 0-based column, -1 if the position is not in the book
+	 */
+	public int lookup(GameBoard gb) {
+		if (!gb.getRules().equals(layout.getRules()) || gb.getMoveCount() > plies)
+			return -1;
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		return lookup(gb.getMoveCount() % 2 == 0 ? x : o, x | o);
+	}
+
+	/**
+	 * Looks up the best move of the player to move
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @return 0-based column, -1 if the position is not in the book
+	 */
+	public int lookup(long current, long mask) {
+		long key = TranspositionTable.key(current, mask);
+		long mirrored = TranspositionTable.key(layout.mirror(current), layout.mirror(mask));
+		int i = find(Math.min(key, mirrored));
+		if (i < 0) {
+			misses.increment();
+			return -1;
+		}
+		hits.increment();
+		int col = buffer.get(HEADER_BYTES + i * RECORD_BYTES + 10);
+		return key <= mirrored ? col : layout.getRules().getCols() - 1 - col;
+	}
+
+	/**
+	 * Returns the stored score of a position, for the player to move
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @return engine score, 0 if the position is not in the book
+	 */
+	public int score(long current, long mask) {
+		long key = TranspositionTable.key(current, mask);
+		long mirrored = TranspositionTable.key(layout.mirror(current), layout.mirror(mask));
+		int i = find(Math.min(key, mirrored));
+		return i < 0 ? 0 : decodeScore(buffer.getShort(HEADER_BYTES + i * RECORD_BYTES + 8));
+	}
+
+	/**
+	 * Binary search for a key
+	 *
+	 * @return record index, -1 if absent
+	 */
+	private int find(long key) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = buffer.getLong(HEADER_BYTES + mid * RECORD_BYTES);
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of lookups that found their position
+	 *
+	 * @return hit count
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that did not find their position
+	 *
+	 * @return miss count
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Packs an engine score into a short. Wins and losses keep the move number
+	 * they happen on.
+	 */
+	static short encodeScore(int score) {
+		if (score > Connect4Engine.WIN_THRESHOLD)
+			return (short) (WIN_BASE + (Connect4Engine.WIN - score));
+		if (score < -Connect4Engine.WIN_THRESHOLD)
+			return (short) -(WIN_BASE + (Connect4Engine.WIN + score));
+		return (short) Math.max(-(WIN_BASE - 1), Math.min(WIN_BASE - 1, score));
+	}
+
+	/**
+	 * Unpacks a score written by encodeScore
+	 */
+	static int decodeScore(short s) {
+		if (s >= WIN_BASE)
+			return Connect4Engine.WIN - (s - WIN_BASE);
+		if (s <= -WIN_BASE)
+			return -(Connect4Engine.WIN - (-s - WIN_BASE));
+		return s;
+	}
+}
@@ -0,0 +1,138 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Builds an opening book: every position reachable in the first plies moves
+ * is searched once and its best move written to a sorted binary file read by
+ * OpeningBook. Mirror images are stored once. Searches run on all cores.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see OpeningBook
+ */
+public class OpeningBookBuilder {
+	private final BitboardLayout layout;
+	private final int plies;
+	private final int depth;
+	private final Map<Long, long[]> positions = new HashMap<Long, long[]>();
+
+	/**
+	 * Creates a builder
+	 *
+	 * @param rules Board geometry and winning run length
+	 * @param plies number of moves from the start to cover
+	 * @param depth search depth per position
+	 */
+	public OpeningBookBuilder(Connect4Rules rules, int plies, int depth) {
+		if (plies < 0 || plies > rules.getCells() || plies > 127)
+			throw new IllegalArgumentException("Plies out of range: " + plies);
+		layout = BitboardLayout.of(rules);
+		this.plies = plies;
+		this.depth = depth;
+	}
+
+	/**
+	 * Collects the positions, searches them and writes the book
+	 *
+	 * @param file file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void build(File file) throws IOException {
+		collect(0, 0, 0);
+		long[] keys = new long[positions.size()];
+		int n = 0;
+		for (long key : positions.keySet())
+			keys[n++] = key;
+		Arrays.sort(keys);
+
+		short[] scores = new short[n];
+		byte[] moves = new byte[n];
+		AtomicInteger done = new AtomicInteger();
+		ThreadLocal<Connect4Engine> engines = ThreadLocal.withInitial(() -> {
+			Connect4Engine engine = new Connect4Engine(layout.getRules());
+			engine.setMaxDepth(depth);
+			engine.setNodeLimit(Long.MAX_VALUE);
+			engine.setTranspositionTable(new TranspositionTable(20));
+			return engine;
+		});
+		IntStream.range(0, n).parallel().forEach(i -> {
+			long[] position = positions.get(keys[i]);
+			Connect4Engine engine = engines.get();
+			moves[i] = (byte) engine.bestMove(position[0], position[1], (int) position[2]);
+			scores[i] = OpeningBook.encodeScore(engine.getLastScore());
+			int count = done.incrementAndGet();
+			if (count % 1000 == 0)
+				System.out.println(count + " / " + keys.length + " positions searched");
+		});
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			Connect4Rules rules = layout.getRules();
+			out.writeInt(OpeningBook.MAGIC);
+			out.writeShort(OpeningBook.VERSION);
+			out.writeByte(rules.getRows());
+			out.writeByte(rules.getCols());
+			out.writeByte(rules.getConnect());
+			out.writeByte(plies);
+			out.writeShort(0);
+			out.writeInt(n);
+			for (int i = 0; i < n; i++) {
+				out.writeLong(keys[i]);
+				out.writeShort(scores[i]);
+				out.writeByte(moves[i]);
+				out.writeByte(depth);
+			}
+		}
+	}
+
+	/**
+	 * Walks every game up to plies moves, keeping one of each mirror pair.
+	 * Positions that are already won or full are not stored.
+	 */
+	private void collect(long current, long mask, int moves) {
+		if (moves > plies)
+			return;
+		long key = TranspositionTable.key(current, mask);
+		long mirroredCurrent = layout.mirror(current);
+		long mirroredMask = layout.mirror(mask);
+		long mirrored = TranspositionTable.key(mirroredCurrent, mirroredMask);
+		long canonical = Math.min(key, mirrored);
+		if (positions.containsKey(canonical))
+			return;
+		long possible = layout.possible(mask);
+		if (possible == 0)
+			return;
+		positions.put(canonical, key <= mirrored ? new long[] { current, mask, moves }
+				: new long[] { mirroredCurrent, mirroredMask, moves });
+		for (long p = possible; p != 0; p &= p - 1) {
+			long bit = p & -p;
+			if (!layout.isWin(current | bit))
+				collect(mask ^ current, mask | bit, moves + 1);
+		}
+	}
+
+	/**
+	 * Builds the standard 6x7 book
+	 *
+	 * @param args output file (default connect4.book), plies (default 8) and
+	 *             search depth (default 14)
+	 * @throws IOException if the book cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		File file = new File(args.length > 0 ? args[0] : OpeningBook.DEFAULT_FILE);
+		int plies = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int depth = args.length > 2 ? Integer.parseInt(args[2]) : 14;
+		long start = System.currentTimeMillis();
+		new OpeningBookBuilder(Connect4Rules.STANDARD, plies, depth).build(file);
+		System.out.println("Wrote " + file + " in " + (System.currentTimeMillis() - start) / 1000 + " s");
+	}
+}
@@ -0,0 +1,498 @@
+package core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Multi-core search for the computer player. The search deepens one move at
+ * a time like Connect4Engine. At each depth the move that was best at the
+ * depth before is scored first with a full window. The other root moves are
+ * then scored in parallel, each by its own task on a ForkJoinPool, with a
+ * null window at that score: a move that fails low is no better and is left
+ * there, and only the moves that fail high are scored again with a window
+ * above it. All workers share one transposition table, which is kept from
+ * one depth and one search to the next, so each root move and depth finds the
+ * work done on the others.
+ * <p>
+ * With a shared table a null window score can depend on what the other
+ * threads stored first, so a move that failed low may in fact tie the best.
+ * Once the last depth has finished, every move whose score is not below the
+ * best is therefore scored again with a full window, and the best move is
+ * the highest exact score, ties going to the move first in center order.
+ * The move so chosen is the same with any number of threads.
+ * <p>
+ * The depth, time and node limits apply to the whole search as they do for
+ * the engine. A depth that does not finish within them is dropped, and the
+ * best move of the last finished depth is played. Searches may be started
+ * from several threads at once. The node count and score getters report the
+ * most recently finished search.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Engine
+ * @see Connect4ComputerPlayer
+ */
+public class ParallelSearch {
+	/** Size of the shared transposition table, 8 MB */
+	public static final int TABLE_BITS = 18;
+	private static final int INFINITY = Connect4Engine.WIN + 1;
+
+	private final Connect4Rules rules;
+	private final ForkJoinPool pool;
+	private final TranspositionTable table = new TranspositionTable(TABLE_BITS);
+	private final ThreadLocal<Connect4Engine> engines;
+	private final BitboardLayout layout;
+	private volatile int maxDepth = Connect4ComputerPlayer.DEFAULT_DEPTH;
+	private volatile long nodeLimit = Long.MAX_VALUE;
+	private volatile long timeLimit;
+	private volatile long nodes;
+	private volatile int lastScore;
+	private volatile int completedDepth;
+
+	/**
+	 * Creates a parallel search using every core
+	 *
+	 * @param rules Board geometry and winning run length
+	 */
+	public ParallelSearch(Connect4Rules rules) {
+		this(rules, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a parallel search
+	 *
+	 * @param rules   Board geometry and winning run length
+	 * @param threads number of worker threads
+	 * @throws IllegalArgumentException if the board does not fit in 64 bits
+	 */
+	public ParallelSearch(Connect4Rules rules, int threads) throws IllegalArgumentException {
+		this.rules = rules;
+		layout = BitboardLayout.of(rules);
+		pool = new ForkJoinPool(threads);
+		engines = ThreadLocal.withInitial(() -> {
+			Connect4Engine engine = new Connect4Engine(rules);
+			engine.setTranspositionTable(table);
+			return engine;
+		});
+	}
+
+	/**
+	 * Returns the rules the search plays
+	 *
+	 * @return board geometry and winning run length
+	 */
+	public Connect4Rules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Returns the number of worker threads
+	 *
+	 * @return pool parallelism
+	 */
+	public int getThreads() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Sets the search depth in moves
+	 *
+	 * @param maxDepth depth of at least 1
+	 */
+	public void setMaxDepth(int maxDepth) {
+		if (maxDepth < 1)
+			throw new IllegalArgumentException("Depth must be at least 1");
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Sets the number of nodes a search may visit on all threads together
+	 *
+	 * @param nodeLimit node limit, at least 1
+	 */
+	public void setNodeLimit(long nodeLimit) {
+		if (nodeLimit < 1)
+			throw new IllegalArgumentException("Node limit must be at least 1");
+		this.nodeLimit = nodeLimit;
+	}
+
+	/**
+	 * Sets the wall-clock budget per search
+	 *
+	 * @param millis time limit in milliseconds, 0 for no limit
+	 */
+	public void setTimeLimit(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Time limit must not be negative");
+		this.timeLimit = millis;
+	}
+
+	/**
+	 * Returns the nodes visited by all threads in the last search
+	 *
+	 * @return node count
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the score of the move chosen by the last search
+	 *
+	 * @return score for the player to move
+	 */
+	public int getLastScore() {
+		return lastScore;
+	}
+
+	/**
+	 * Returns the depth the last search finished
+	 *
+	 * @return completed depth, 0 if not even depth 1 finished
+	 */
+	public int getCompletedDepth() {
+		return completedDepth;
+	}
+
+	/**
+	 * Returns the transposition table the workers share
+	 *
+	 * @return transposition table
+	 */
+	public TranspositionTable getTranspositionTable() {
+		return table;
+	}
+
+	/**
+	 * Chooses a column for the player to move on the board with the limits
+	 * set on this search. 'X' moves first.
+	 *
+	 * @param gb The board to search, left unchanged
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(GameBoard gb) {
+		return bestMove(gb, maxDepth, timeLimit, nodeLimit);
+	}
+
+	/**
+	 * Chooses a column for the player to move on the board with the limits of
+	 * one player, so that players with different limits can share the search
+	 *
+	 * @param gb        The board to search, left unchanged
+	 * @param depth     search depth in moves, at least 1
+	 * @param millis    time limit in milliseconds, 0 for no limit
+	 * @param nodeLimit node limit on all threads together, at least 1
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(GameBoard gb, int depth, long millis, long nodeLimit) {
+		if (!gb.getRules().equals(rules))
+			throw new IllegalArgumentException("Board " + gb.getRules() + " is not " + rules);
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		int moves = gb.getMoveCount();
+		return bestMove(moves % 2 == 0 ? x : o, x | o, moves, depth, millis, nodeLimit);
+	}
+
+	/**
+	 * Chooses a column for the player to move with the limits set on this
+	 * search
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param moves   number of tokens on the board
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(long current, long mask, int moves) {
+		return bestMove(current, mask, moves, maxDepth, timeLimit, nodeLimit);
+	}
+
+	/**
+	 * Chooses a column for the player to move
+	 *
+	 * @param current   tokens of the player to move
+	 * @param mask      all tokens on the board
+	 * @param moves     number of tokens on the board
+	 * @param depth     search depth in moves, at least 1
+	 * @param millis    time limit in milliseconds, 0 for no limit
+	 * @param nodeLimit node limit on all threads together, at least 1
+	 * @return 0-based column, -1 if the board is full
+	 */
+	public int bestMove(long current, long mask, int moves, int depth, long millis, long nodeLimit) {
+		if (depth < 1 || millis < 0 || nodeLimit < 1)
+			throw new IllegalArgumentException("Limits must be positive");
+		completedDepth = 0;
+		long possible = layout.possible(mask);
+		if (possible == 0)
+			return -1;
+		long wins = layout.winningMoves(current, mask);
+		if (wins != 0) {
+			nodes = 0;
+			lastScore = Connect4Engine.WIN - (moves + 1);
+			return layout.columnOf(wins & -wins);
+		}
+
+		long deadline = millis > 0 ? System.nanoTime() + millis * 1000000L : 0;
+		int[] order = new int[rules.getCols()];
+		int n = 0;
+		for (int col : layout.centerOrder()) {
+			if ((possible & layout.columnMask(col)) != 0)
+				order[n++] = col;
+		}
+		table.newSearch();
+		int best = order[0];
+		int bestScore = 0;
+		int[] scores = null;
+		int finished = 0;
+		long total = 0;
+		for (int d = 1; d <= Math.min(depth, rules.getCells() - moves); d++) {
+			// the best move of the depth before goes first
+			int at = 0;
+			while (order[at] != best)
+				at++;
+			System.arraycopy(order, 0, order, 1, at);
+			order[0] = best;
+			if (nodeLimit - total < 1 || deadline != 0 && deadline - System.nanoTime() < 1000000)
+				break;
+			RootMove first = new RootMove(current, mask, moves, order[0], d, -INFINITY, INFINITY, deadline,
+					nodeLimit - total);
+			pool.invoke(first);
+			total += first.nodes;
+			if (first.aborted)
+				break;
+			int alpha = first.score;
+			int iterationBest = order[0];
+			int[] iteration = new int[rules.getCols()];
+			iteration[order[0]] = alpha;
+			// the moves searched side by side share what is left of the nodes
+			RootMove[] tasks = new RootMove[n - 1];
+			for (int i = 1; i < n; i++)
+				tasks[i - 1] = new RootMove(current, mask, moves, order[i], d, alpha, alpha + 1, deadline,
+						(nodeLimit - total) / tasks.length);
+			total += invokeAll(tasks);
+			boolean aborted = false;
+			int failedHigh = 0;
+			for (RootMove task : tasks) {
+				aborted |= task.aborted;
+				iteration[task.col] = task.score;
+				if (task.score > alpha)
+					tasks[failedHigh++] = task;
+			}
+			if (!aborted && failedHigh > 0) {
+				RootMove[] researches = new RootMove[failedHigh];
+				for (int i = 0; i < failedHigh; i++)
+					researches[i] = new RootMove(current, mask, moves, tasks[i].col, d, alpha, INFINITY, deadline,
+							(nodeLimit - total) / failedHigh);
+				total += invokeAll(researches);
+				for (RootMove task : researches) {
+					aborted |= task.aborted;
+					iteration[task.col] = task.score;
+					if (task.score > alpha) {
+						alpha = task.score;
+						iterationBest = task.col;
+					}
+				}
+			}
+			if (aborted)
+				break;
+			best = iterationBest;
+			bestScore = alpha;
+			scores = iteration;
+			finished = d;
+			// a proven win or loss does not change with more depth
+			if (alpha > Connect4Engine.WIN_THRESHOLD || alpha < -Connect4Engine.WIN_THRESHOLD)
+				break;
+		}
+		int tied = 0;
+		for (int i = 0; scores != null && i < n; i++) {
+			if (scores[order[i]] >= bestScore)
+				tied++;
+		}
+		if (tied > 1) {
+			// a window of one score either side tells ties from better and worse
+			RootMove[] exact = new RootMove[tied];
+			int k = 0;
+			for (int col : layout.centerOrder()) {
+				if ((possible & layout.columnMask(col)) != 0 && scores[col] >= bestScore)
+					exact[k++] = new RootMove(current, mask, moves, col, finished, bestScore - 1, bestScore + 1,
+							deadline, (nodeLimit - total) / tied);
+			}
+			total += invokeAll(exact);
+			int better = 0;
+			boolean aborted = false;
+			for (RootMove task : exact) {
+				aborted |= task.aborted;
+				if (task.score > bestScore)
+					exact[better++] = task;
+			}
+			if (!aborted && better > 0) {
+				RootMove[] researches = new RootMove[better];
+				for (int i = 0; i < better; i++)
+					researches[i] = new RootMove(current, mask, moves, exact[i].col, finished, bestScore, INFINITY,
+							deadline, (nodeLimit - total) / better);
+				total += invokeAll(researches);
+				exact = researches;
+				for (RootMove task : exact)
+					aborted |= task.aborted;
+			}
+			// out of time, the move of the last depth stands
+			if (!aborted) {
+				int score = bestScore;
+				int chosen = -1;
+				for (RootMove task : exact) {
+					if (chosen < 0 && task.score == score || task.score > score) {
+						score = task.score;
+						chosen = task.col;
+					}
+				}
+				// a table entry from an earlier search can move every score off the best
+				if (chosen >= 0) {
+					best = chosen;
+					bestScore = score;
+				}
+			}
+		}
+		nodes = total;
+		lastScore = bestScore;
+		completedDepth = finished;
+		return best;
+	}
+
+	/**
+	 * Runs root moves on the pool and waits for all of them
+	 *
+	 * @return nodes they visited
+	 */
+	private long invokeAll(RootMove[] tasks) {
+		if (tasks.length == 0)
+			return 0;
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		long total = 0;
+		for (RootMove task : tasks)
+			total += task.nodes;
+		return total;
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Scores one root move within a window on the worker's own engine, until
+	 * the search's deadline or the move's share of the nodes runs out
+	 */
+	private class RootMove extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final long current;
+		private final long mask;
+		private final int moves;
+		private final int col;
+		private final int depth;
+		private final int alpha;
+		private final int beta;
+		private final long deadline;
+		private final long nodeLimit;
+		private int score;
+		private long nodes;
+		private boolean aborted;
+
+		RootMove(long current, long mask, int moves, int col, int depth, int alpha, int beta, long deadline,
+				long nodeLimit) {
+			this.current = current;
+			this.mask = mask;
+			this.moves = moves;
+			this.col = col;
+			this.depth = depth;
+			this.alpha = alpha;
+			this.beta = beta;
+			this.deadline = deadline;
+			this.nodeLimit = nodeLimit;
+		}
+
+		@Override
+		protected void compute() {
+			Connect4Engine engine = engines.get();
+			engine.setTimeLimit(deadline == 0 ? 0 : Math.max(1, (deadline - System.nanoTime()) / 1000000));
+			engine.setNodeLimit(Math.max(1, nodeLimit));
+			score = engine.scoreMove(current, mask, moves, col, depth, alpha, beta);
+			nodes = engine.getNodes();
+			aborted = engine.wasAborted();
+		}
+	}
+
+	/**
+	 * Times the same searches on the serial Connect4Engine and with 1, 2, 4
+	 * ... threads up to the number of cores, at least 2, and prints the
+	 * speedup over the serial engine. Both get a table of the same size.
+	 * Fails if two thread counts choose different moves.
+	 *
+	 * @param args optional search depth, default 12, and most threads,
+	 *             default the number of cores
+	 */
+	public static void main(String[] args) {
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+		String[] openings = { "", "44", "4453", "3443", "4444", "3352", "4536", "2265" };
+		int cores = Math.max(2, args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+		long baseline = 0;
+		// warm up the compiler on both searches before timing
+		ParallelSearch warmup = new ParallelSearch(Connect4Rules.STANDARD, 1);
+		for (int i = 0; i < 3; i++) {
+			warmup.bestMove(0, 0, 0, depth, 0, Long.MAX_VALUE);
+			Connect4Engine engine = new Connect4Engine(Connect4Rules.STANDARD);
+			engine.setMaxDepth(depth);
+			engine.setNodeLimit(Long.MAX_VALUE);
+			engine.bestMove(0, 0, 0);
+		}
+		warmup.shutdown();
+		String parallelMoves = null;
+		for (int threads = 0;; threads = Math.max(1, Math.min(threads * 2, cores))) {
+			ParallelSearch search = threads > 0 ? new ParallelSearch(Connect4Rules.STANDARD, threads) : null;
+			Connect4Engine engine = new Connect4Engine(Connect4Rules.STANDARD);
+			engine.setTranspositionTable(new TranspositionTable(TABLE_BITS));
+			engine.setMaxDepth(depth);
+			engine.setNodeLimit(Long.MAX_VALUE);
+			StringBuilder moves = new StringBuilder();
+			long nodes = 0;
+			long start = System.nanoTime();
+			for (String opening : openings) {
+				Connect4 game = new Connect4();
+				GameBoard gb = game.getGameBoard();
+				for (int i = 0; i < opening.length(); i++)
+					gb.setToken(opening.charAt(i) - '0', i % 2 == 0 ? 'X' : 'O');
+				if (search != null) {
+					moves.append(search.bestMove(gb, depth, 0, Long.MAX_VALUE) + 1);
+					nodes += search.getNodes();
+				} else {
+					moves.append(engine.bestMove(gb) + 1);
+					nodes += engine.getNodes();
+				}
+			}
+			long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+			if (threads == 0)
+				baseline = ms;
+			System.out.printf("%-10s  %6d ms  speedup %.2f  %,d nodes  %,d nodes/s  moves %s%n",
+					threads == 0 ? "serial" : "threads " + threads, ms, (double) baseline / ms, nodes,
+					nodes * 1000 / ms, moves);
+			if (search != null)
+				search.shutdown();
+			if (threads > 0 && parallelMoves != null && !parallelMoves.equals(moves.toString()))
+				throw new IllegalStateException("Threads " + threads + " chose " + moves + ", not " + parallelMoves);
+			if (threads > 0)
+				parallelMoves = moves.toString();
+			if (threads == cores)
+				break;
+		}
+		System.out.println("same moves with every thread count");
+	}
+}
@@ -0,0 +1,368 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Counts every move sequence from a position to a given depth, playing and
+ * taking back moves on a GameBoard, with the games that end on the way
+ * counted by outcome and not played further. The counts only depend on the
+ * rules and the position, so they are a check on move generation and win
+ * detection, and the time they take is a repeatable benchmark of the core.
+ * <p>
+ * With verification on, every position is also checked against the full
+ * board scans of Connect4 (checkHorizontal, checkVertical, checkDiagLR and
+ * checkDiagRL) and every takeback against the hash before the move.
+ * <p>
+ * Boards are assumed to alternate 'X' and 'O' from 'X', as makeMove does.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4.GameBoard
+ */
+public class Perft {
+	private final Connect4Rules rules;
+	private final boolean verify;
+
+	/**
+	 * Creates a counter
+	 *
+	 * @param rules  Board geometry and winning run length
+	 * @param verify true to check every position against the full board scans
+	 */
+	public Perft(Connect4Rules rules, boolean verify) {
+		this.rules = rules;
+		this.verify = verify;
+	}
+
+	/**
+	 * Move sequence counts by ply from the start position
+	 */
+	public static final class Counts {
+		private final long[] positions;
+		private final long[] xWins;
+		private final long[] oWins;
+		private final long[] draws;
+
+		Counts(int depth) {
+			positions = new long[depth + 1];
+			xWins = new long[depth + 1];
+			oWins = new long[depth + 1];
+			draws = new long[depth + 1];
+		}
+
+		void add(Counts other) {
+			for (int ply = 0; ply < positions.length; ply++) {
+				positions[ply] += other.positions[ply];
+				xWins[ply] += other.xWins[ply];
+				oWins[ply] += other.oWins[ply];
+				draws[ply] += other.draws[ply];
+			}
+		}
+
+		/**
+		 * Returns the depth counted to
+		 *
+		 * @return highest ply with counts
+		 */
+		public int getDepth() {
+			return positions.length - 1;
+		}
+
+		/**
+		 * Returns the move sequences of a length
+		 *
+		 * @param ply moves after the start position, from 1 to getDepth()
+		 * @return number of sequences, ended games included
+		 */
+		public long getPositions(int ply) {
+			return positions[ply];
+		}
+
+		/**
+		 * Returns the sequences of a length that end with a win for 'X'
+		 *
+		 * @param ply moves after the start position
+		 * @return games won by 'X' on that ply
+		 */
+		public long getXWins(int ply) {
+			return xWins[ply];
+		}
+
+		/**
+		 * Returns the sequences of a length that end with a win for 'O'
+		 *
+		 * @param ply moves after the start position
+		 * @return games won by 'O' on that ply
+		 */
+		public long getOWins(int ply) {
+			return oWins[ply];
+		}
+
+		/**
+		 * Returns the sequences of a length that fill the board without a win
+		 *
+		 * @param ply moves after the start position
+		 * @return drawn games on that ply
+		 */
+		public long getDraws(int ply) {
+			return draws[ply];
+		}
+
+		/**
+		 * Returns the positions visited, the sum over every ply
+		 *
+		 * @return total sequences counted
+		 */
+		public long getNodes() {
+			long n = 0;
+			for (long p : positions)
+				n += p;
+			return n;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Counts))
+				return false;
+			Counts c = (Counts) o;
+			return Arrays.equals(positions, c.positions) && Arrays.equals(xWins, c.xWins)
+					&& Arrays.equals(oWins, c.oWins) && Arrays.equals(draws, c.draws);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(positions);
+		}
+	}
+
+	/**
+	 * Counts on one thread. The board is played on and left as it was.
+	 *
+	 * @param gb    start position
+	 * @param depth plies to count, at least 1
+	 * @return counts by ply
+	 * @throws IllegalStateException if verification finds a disagreement
+	 */
+	public Counts count(GameBoard gb, int depth) throws IllegalStateException {
+		if (depth < 1)
+			throw new IllegalArgumentException("Depth must be at least 1");
+		Counts counts = new Counts(depth);
+		walk(gb, 0, depth, new int[depth][gb.getCols()], counts);
+		return counts;
+	}
+
+	/**
+	 * Counts on a pool. The first plies are played out on the calling thread
+	 * until there are a few sequences per thread, and each sequence is then
+	 * counted by its own task on a copy of the board.
+	 *
+	 * @param gb      start position, left unchanged
+	 * @param depth   plies to count, at least 1
+	 * @param threads worker threads
+	 * @return counts by ply, the same as count returns
+	 * @throws IllegalStateException if verification finds a disagreement
+	 */
+	public Counts countParallel(GameBoard gb, int depth, int threads) throws IllegalStateException {
+		if (depth < 1)
+			throw new IllegalArgumentException("Depth must be at least 1");
+		Counts counts = new Counts(depth);
+		int split = 0;
+		for (long tasks = 1; split < depth - 1 && tasks < 16L * threads; split++)
+			tasks *= gb.getCols();
+		List<Subtree> tasks = new ArrayList<Subtree>();
+		if (split == 0)
+			tasks.add(new Subtree(gb, 0, depth));
+		else
+			split(gb, 0, split, depth, counts, tasks);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+		for (Subtree task : tasks)
+			counts.add(task.counts);
+		return counts;
+	}
+
+	/**
+	 * Plays the first plies, counting them, and queues a task for every
+	 * sequence still going at the split ply
+	 */
+	private void split(GameBoard gb, int ply, int split, int depth, Counts counts, List<Subtree> tasks) {
+		for (int col = 0; col < gb.getCols(); col++) {
+			int row = gb.makeMove(col);
+			if (row < 0)
+				continue;
+			if (!score(gb, row, col, ply, counts)) {
+				if (ply + 1 < split)
+					split(gb, ply + 1, split, depth, counts, tasks);
+				else
+					tasks.add(new Subtree(gb, ply + 1, depth));
+			}
+			gb.undoMove();
+		}
+	}
+
+	/**
+	 * Counts the sequences below a board reached after the first plies, on a
+	 * board of its own
+	 */
+	private final class Subtree extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final byte[] moves;
+		private final int ply;
+		private final int depth;
+		private final Counts counts;
+
+		Subtree(GameBoard gb, int ply, int depth) {
+			// the board keeps changing while tasks are queued, so copy its moves
+			moves = new byte[gb.getMoveCount()];
+			for (int i = 0; i < moves.length; i++)
+				moves[i] = (byte) gb.getMove(i);
+			this.ply = ply;
+			this.depth = depth;
+			counts = new Counts(depth);
+		}
+
+		@Override
+		protected void compute() {
+			GameBoard gb = new Connect4(rules).getGameBoard();
+			for (byte col : moves)
+				gb.makeMove(col);
+			walk(gb, ply, depth, new int[depth][gb.getCols()], counts);
+		}
+	}
+
+	/**
+	 * Counts the sequences below the board from ply on
+	 */
+	private void walk(GameBoard gb, int ply, int depth, int[][] columns, Counts counts) {
+		int[] order = columns[ply];
+		int n = gb.fillLegalColumns(order);
+		for (int i = 0; i < n; i++) {
+			int col = order[i];
+			long hash = gb.getHash();
+			int row = gb.makeMove(col);
+			if (!score(gb, row, col, ply, counts) && ply + 1 < depth)
+				walk(gb, ply + 1, depth, columns, counts);
+			gb.undoMove();
+			if (verify && gb.getHash() != hash)
+				throw new IllegalStateException("Takeback of column " + (col + 1) + " changed the hash");
+		}
+	}
+
+	/**
+	 * Counts the position after a move at ply
+	 *
+	 * @return true if the game is over
+	 */
+	private boolean score(GameBoard gb, int row, int col, int ply, Counts counts) {
+		counts.positions[ply + 1]++;
+		boolean won = gb.isWinningMove(row, col);
+		char token = gb.getElement(row, col);
+		if (verify)
+			verify(gb, won, token);
+		if (won) {
+			if (token == 'X')
+				counts.xWins[ply + 1]++;
+			else
+				counts.oWins[ply + 1]++;
+			return true;
+		}
+		if (gb.isFull()) {
+			counts.draws[ply + 1]++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the last move's win test against scanning the whole board for
+	 * both players
+	 */
+	private void verify(GameBoard gb, boolean won, char token) {
+		Connect4 scanner = new Connect4(rules);
+		GameBoard copy = scanner.getGameBoard();
+		for (int ply = 0; ply < gb.getMoveCount(); ply++)
+			copy.makeMove(gb.getMove(ply));
+		char other = token == 'X' ? 'O' : 'X';
+		if (scan(scanner, token) != won || scan(scanner, other))
+			throw new IllegalStateException("Win detection disagrees with the board scan after " + moves(gb));
+	}
+
+	private static boolean scan(Connect4 game, char c) {
+		return game.checkHorizontal(c) || game.checkVertical(c) || game.checkDiagLR(c) || game.checkDiagRL(c);
+	}
+
+	private static String moves(GameBoard gb) {
+		StringBuilder sb = new StringBuilder();
+		for (int ply = 0; ply < gb.getMoveCount(); ply++)
+			sb.append(gb.getMove(ply) + 1);
+		return sb.toString();
+	}
+
+	/**
+	 * Counts from a position on one thread and on every core, prints the
+	 * counts by ply and the speed of both, and checks that they agree
+	 *
+	 * @param args optional depth=N (default 8), moves=COLUMNS (1-based start
+	 *             position, default empty), threads=N (default every core) and
+	 *             verify to check every position against the board scans
+	 */
+	public static void main(String[] args) {
+		int depth = 8;
+		String moves = "";
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean verify = false;
+		for (String arg : args) {
+			if (arg.startsWith("depth="))
+				depth = Integer.parseInt(arg.substring(6));
+			else if (arg.startsWith("moves="))
+				moves = arg.substring(6);
+			else if (arg.startsWith("threads="))
+				threads = Integer.parseInt(arg.substring(8));
+			else if (arg.equals("verify"))
+				verify = true;
+			else
+				throw new IllegalArgumentException("Unknown argument " + arg);
+		}
+		GameBoard gb = new Connect4().getGameBoard();
+		for (int i = 0; i < moves.length(); i++) {
+			if (gb.makeMove(moves.charAt(i) - '1') < 0)
+				throw new IllegalArgumentException("Cannot play " + moves.charAt(i));
+		}
+		Perft perft = new Perft(gb.getRules(), verify);
+
+		long start = System.nanoTime();
+		Counts single = perft.count(gb, depth);
+		long singleNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		Counts parallel = perft.countParallel(gb, depth, threads);
+		long parallelNanos = System.nanoTime() - start;
+
+		System.out.printf("%4s %16s %14s %14s %10s%n", "ply", "positions", "X wins", "O wins", "draws");
+		for (int ply = 1; ply <= depth; ply++)
+			System.out.printf("%4d %,16d %,14d %,14d %,10d%n", ply, single.getPositions(ply), single.getXWins(ply),
+					single.getOWins(ply), single.getDraws(ply));
+		long nodes = single.getNodes();
+		System.out.printf("%nthreads  1  %8.2f s  %,14.0f nodes/s%n", singleNanos / 1e9, nodes * 1e9 / singleNanos);
+		System.out.printf("threads %2d  %8.2f s  %,14.0f nodes/s  speedup %.2f%n", threads, parallelNanos / 1e9,
+				nodes * 1e9 / parallelNanos, (double) singleNanos / parallelNanos);
+		if (!single.equals(parallel))
+			throw new IllegalStateException("Single-threaded and parallel counts differ");
+	}
+}
@@ -0,0 +1,335 @@
+package core;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Searches while the opponent is thinking. After the computer has moved,
+ * every reply of the opponent is searched, the reply the last search
+ * expected first and with the longest slice, then the others center first,
+ * deepening in rounds of doubled time until the opponent moves. When the
+ * reply arrives and was already searched as deep as the computer would
+ * search it, its move is played at once. Otherwise the pondered results stay
+ * in the engine's transposition table, and the computer's search finds the
+ * depths already pondered for that branch and goes on from there.
+ * <p>
+ * Each search of one reply is a slice queued on the server's EngineWorkerPool
+ * at BACKGROUND priority, so pondering only uses workers no computer move is
+ * waiting for, and the next slice is queued when one ends. Every slice is
+ * charged to the game's SearchBudget.Session like a move and is no longer
+ * than the session would grant a move. Pondering also stops once it has used
+ * the time or nodes it is allowed per turn.
+ * <p>
+ * The engine must not be used by another thread between start and stop.
+ * <p>
+ * stop waits for a running slice while holding the ponderer's lock, so the
+ * lock is a ReentrantLock rather than a monitor: a session on a virtual
+ * thread then unmounts while it waits instead of pinning its carrier thread.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Engine
+ * @see Connect4ComputerPlayer
+ * @see EngineWorkerPool
+ */
+public class Ponderer {
+	private static final int QUEUED = 0;
+	private static final int SEARCHING = 1;
+	private static final int DONE = 2;
+
+	private final Connect4Engine engine;
+	private final BitboardLayout layout;
+	private final EngineWorkerPool pool;
+	private final SearchBudget.Session limits;
+	private final ReentrantLock lock = new ReentrantLock();
+	private Turn turn;
+	private volatile long nodes;
+	private long rootMask;
+	private int[] replies = new int[0];
+	private int[] bestMoves = new int[0];
+	private int[] depths = new int[0];
+	private boolean[] proven = new boolean[0];
+	private int savedDepth;
+	private long savedNodeLimit;
+	private long savedTimeLimit;
+
+	/**
+	 * Creates a ponderer for an engine
+	 *
+	 * @param engine the engine to search with
+	 * @param pool   workers to queue the slices on
+	 * @param limits session charged with every slice, null to charge none
+	 */
+	public Ponderer(Connect4Engine engine, EngineWorkerPool pool, SearchBudget.Session limits) {
+		this.engine = engine;
+		this.pool = pool;
+		this.limits = limits;
+		layout = engine.getLayout();
+	}
+
+	/**
+	 * Pondering of one turn of the opponent: where the slices stand, what they
+	 * have used, and the replies still open
+	 */
+	private final class Turn {
+		private final long current;
+		private final long mask;
+		private final int moves;
+		private final long maxMillis;
+		private final long maxNodes;
+		private final boolean[] solved = new boolean[replies.length];
+		private final AtomicInteger phase = new AtomicInteger(QUEUED);
+		private volatile boolean cancelled;
+		private long slice;
+		private int next;
+		private boolean open;
+		private long usedNanos;
+		private long usedNodes;
+
+		Turn(long current, long mask, int moves, long sliceMillis, long maxMillis, long maxNodes) {
+			this.current = current;
+			this.mask = mask;
+			this.moves = moves;
+			this.maxMillis = maxMillis;
+			this.maxNodes = maxNodes;
+			slice = sliceMillis;
+		}
+
+		/**
+		 * Queues the next slice, or ends the turn if the pool is shut down
+		 */
+		void queue() {
+			try {
+				pool.submit(EngineWorkerPool.BACKGROUND, () -> {
+					run();
+					return null;
+				}, 0);
+			} catch (RejectedExecutionException e) {
+				phase.set(DONE);
+			} catch (InterruptedException e) {
+				phase.set(DONE);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Searches one reply, on a worker, unless stop came first
+		 */
+		private void run() {
+			if (!phase.compareAndSet(QUEUED, SEARCHING))
+				return;
+			boolean more = false;
+			try {
+				more = !cancelled && search();
+			} finally {
+				if (more && !cancelled) {
+					phase.set(QUEUED);
+					queue();
+				} else {
+					phase.set(DONE);
+				}
+			}
+		}
+
+		/**
+		 * Searches the next open reply
+		 *
+		 * @return true if there is more to ponder
+		 */
+		private boolean search() {
+			// skip to the next reply still open, starting a new round after the last
+			while (true) {
+				if (next == replies.length) {
+					if (!open)
+						return false;
+					next = 0;
+					open = false;
+					slice *= 2;
+				}
+				if (!solved[next])
+					break;
+				next++;
+			}
+			int i = next++;
+			long bit = layout.moveBit(mask, replies[i]);
+			if (layout.isWin(current | bit) || moves + 1 == layout.getRules().getCells()) {
+				solved[i] = true;
+				return true;
+			}
+			long millisLeft = maxMillis - usedNanos / 1000000;
+			long nodesLeft = maxNodes - usedNodes;
+			if (millisLeft < 1 || nodesLeft < 1)
+				return false;
+			int movesLeft = Math.max(1, (layout.getRules().getCells() - moves) / 2);
+			long start = System.nanoTime();
+			try (SearchBudget.Grant grant = limits != null ? limits.acquire(movesLeft) : null) {
+				long millis = Math.min(i == 0 ? 4 * slice : slice, millisLeft);
+				long nodeLimit = nodesLeft;
+				if (grant != null) {
+					millis = Math.min(millis, grant.getMillis());
+					nodeLimit = Math.min(nodeLimit, grant.getNodes());
+				}
+				engine.setTimeLimit(Math.max(1, millis));
+				engine.setNodeLimit(nodeLimit);
+				int best = engine.bestMove(mask ^ current, mask | bit, moves + 1);
+				long searched = engine.getNodes();
+				if (grant != null)
+					grant.addNodes(searched);
+				usedNodes += searched;
+				nodes += searched;
+				int score = engine.getLastScore();
+				// a search that was not cut short, or found a forced result, is final
+				boolean done = !engine.wasAborted() || score > Connect4Engine.WIN_THRESHOLD
+						|| score < -Connect4Engine.WIN_THRESHOLD;
+				if (done || engine.getCompletedDepth() > depths[i]) {
+					bestMoves[i] = best;
+					depths[i] = engine.getCompletedDepth();
+					proven[i] = done;
+				}
+			} finally {
+				usedNanos += System.nanoTime() - start;
+			}
+			solved[i] = proven[i];
+			open |= !solved[i];
+			return true;
+		}
+	}
+
+	/**
+	 * Starts pondering the replies of the opponent, stopping any earlier
+	 * pondering first
+	 *
+	 * @param current     tokens of the opponent, who is to move
+	 * @param mask        all tokens on the board
+	 * @param moves       number of tokens on the board
+	 * @param sliceMillis time for each reply in the first round
+	 * @param maxMillis   time all slices of this turn may take together
+	 * @param maxNodes    nodes all slices of this turn may visit together
+	 */
+	public void start(long current, long mask, int moves, long sliceMillis, long maxMillis, long maxNodes) {
+		lock.lock();
+		try {
+			stop();
+			if (layout.possible(mask) == 0 || maxMillis < 1 || maxNodes < 1)
+				return;
+			savedDepth = engine.getMaxDepth();
+			savedNodeLimit = engine.getNodeLimit();
+			savedTimeLimit = engine.getTimeLimit();
+			engine.setMaxDepth(layout.getRules().getCells());
+			rootMask = mask;
+			replies = replies(current, mask);
+			bestMoves = new int[replies.length];
+			depths = new int[replies.length];
+			proven = new boolean[replies.length];
+			nodes = 0;
+			turn = new Turn(current, mask, moves, Math.max(1, sliceMillis), maxMillis, maxNodes);
+			turn.queue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops pondering. A slice still queued is dropped, and a running one is
+	 * stopped and waited for. The engine gets back the limits it had when
+	 * pondering started.
+	 */
+	public void stop() {
+		lock.lock();
+		try {
+			if (turn == null)
+				return;
+			turn.cancelled = true;
+			boolean interrupted = false;
+			// a stop can land between two searches, so repeat it until the slice ends
+			while (!turn.phase.compareAndSet(QUEUED, DONE) && turn.phase.get() != DONE) {
+				engine.stop();
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			turn = null;
+			engine.setMaxDepth(savedDepth);
+			engine.setNodeLimit(savedNodeLimit);
+			engine.setTimeLimit(savedTimeLimit);
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if pondering is going on
+	 *
+	 * @return true between start and stop while replies are left to search
+	 *         and the turn's limits are not used up
+	 */
+	public boolean isPondering() {
+		lock.lock();
+		try {
+			return turn != null && turn.phase.get() != DONE;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the pondered answer to the opponent's reply, once pondering has
+	 * stopped
+	 *
+	 * @param mask     all tokens on the board after the reply
+	 * @param minDepth depth the reply must have been searched to
+	 * @return 0-based column to play, -1 if the position was not pondered or
+	 *         not deep enough
+	 */
+	public int ponderedMove(long mask, int minDepth) {
+		lock.lock();
+		try {
+			if (turn != null)
+				return -1;
+			long played = mask ^ rootMask;
+			if (Long.bitCount(played) != 1 || (played & layout.possible(rootMask)) == 0)
+				return -1;
+			int col = layout.columnOf(played);
+			for (int i = 0; i < replies.length; i++) {
+				if (replies[i] == col)
+					return proven[i] || (depths[i] > 0 && depths[i] >= minDepth) ? bestMoves[i] : -1;
+			}
+			return -1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the nodes searched since pondering last started
+	 *
+	 * @return node count
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Orders the replies: the hash move the engine left for the position
+	 * first, then center first
+	 */
+	private int[] replies(long current, long mask) {
+		long entry = engine.getTranspositionTable().probe(TranspositionTable.key(current, mask));
+		int expected = entry != 0 ? TranspositionTable.move(entry) : -1;
+		long possible = layout.possible(mask);
+		int[] order = new int[Long.bitCount(possible)];
+		int n = 0;
+		if (expected >= 0 && layout.moveBit(mask, expected) != 0)
+			order[n++] = expected;
+		for (int col : layout.centerOrder()) {
+			if (col != expected && layout.moveBit(mask, col) != 0)
+				order[n++] = col;
+		}
+		return order;
+	}
+}
@@ -0,0 +1,263 @@
+package core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Immutable board position for boards that fit in 64 bits: the tokens of
+ * the player to move and the mask of all tokens, laid out as described in
+ * BitboardLayout. 'X' is to move when the number of tokens is even. Playing
+ * a column returns a new position, so positions can be handed to other
+ * threads, cached and used as map keys without copying or locking.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see BitboardLayout
+ * @see Connect4.GameBoard
+ */
+public final class Position implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final Connect4Rules rules;
+	private final long current;
+	private final long mask;
+	private transient BitboardLayout layout;
+
+	private Position(Connect4Rules rules, BitboardLayout layout, long current, long mask) {
+		this.rules = rules;
+		this.layout = layout;
+		this.current = current;
+		this.mask = mask;
+	}
+
+	/**
+	 * Returns the empty board
+	 *
+	 * @param rules Board geometry and winning run length
+	 * @return position with no tokens, 'X' to move
+	 * @throws IllegalArgumentException if the board does not fit in 64 bits
+	 */
+	public static Position empty(Connect4Rules rules) throws IllegalArgumentException {
+		return new Position(rules, BitboardLayout.of(rules), 0, 0);
+	}
+
+	/**
+	 * Creates a position from its masks
+	 *
+	 * @param rules   Board geometry and winning run length
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @return the position
+	 * @throws IllegalArgumentException if the board does not fit in 64 bits,
+	 *                                  current is not part of mask or a column
+	 *                                  has a gap
+	 */
+	public static Position of(Connect4Rules rules, long current, long mask) throws IllegalArgumentException {
+		BitboardLayout layout = BitboardLayout.of(rules);
+		// each column must be filled from the bottom without gaps
+		if ((current & ~mask) != 0 || (mask & ~layout.getBoardMask()) != 0
+				|| ((mask + layout.getBottomMask()) & mask) != 0)
+			throw new IllegalArgumentException("Not a position: " + current + ", " + mask);
+		return new Position(rules, layout, current, mask);
+	}
+
+	/**
+	 * Copies the tokens of a live board
+	 *
+	 * @param gb the board
+	 * @return position of the board, the player to move decided by its move
+	 *         count
+	 * @throws IllegalStateException if the board does not fit in 64 bits
+	 */
+	public static Position of(GameBoard gb) throws IllegalStateException {
+		long x = gb.getTokens('X');
+		long o = gb.getTokens('O');
+		return new Position(gb.getRules(), BitboardLayout.of(gb.getRules()),
+				gb.getMoveCount() % 2 == 0 ? x : o, x | o);
+	}
+
+	/**
+	 * Returns the position after the player to move plays a column
+	 *
+	 * @param col 0-based column
+	 * @return the new position
+	 * @throws IllegalArgumentException if the column is full or out of range
+	 */
+	public Position play(int col) throws IllegalArgumentException {
+		if (!canPlay(col))
+			throw new IllegalArgumentException("Column " + col + " cannot be played");
+		return new Position(rules, layout, mask ^ current, mask | layout.moveBit(mask, col));
+	}
+
+	/**
+	 * Checks if a column has an open space
+	 *
+	 * @param col 0-based column
+	 * @return true if col is on the board and not filled
+	 */
+	public boolean canPlay(int col) {
+		return col >= 0 && col < rules.getCols() && layout.moveBit(mask, col) != 0;
+	}
+
+	/**
+	 * Checks if playing a column wins for the player to move
+	 *
+	 * @param col 0-based column
+	 * @return true if the token in col completes a winning run
+	 */
+	public boolean isWinningMove(int col) {
+		return canPlay(col) && layout.isWin(current | layout.moveBit(mask, col));
+	}
+
+	/**
+	 * Checks if the player who just moved has a winning run
+	 *
+	 * @return true if the game was won by the last move
+	 */
+	public boolean isWon() {
+		return layout.isWin(mask ^ current);
+	}
+
+	/**
+	 * Checks if board is filled up
+	 *
+	 * @return true if every cell holds a token
+	 */
+	public boolean isFull() {
+		return mask == layout.getBoardMask();
+	}
+
+	/**
+	 * Returns the columns that still have an open space as a bitmask
+	 *
+	 * @return mask with bit i set if 0-based column i is not filled
+	 */
+	public int getLegalColumns() {
+		return layout.legalColumns(mask);
+	}
+
+	/**
+	 * Returns the rules of this position
+	 *
+	 * @return board geometry and winning run length
+	 */
+	public Connect4Rules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Returns the tokens of the player to move
+	 *
+	 * @return mask with one bit per token
+	 */
+	public long getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Returns all tokens on the board
+	 *
+	 * @return mask with one bit per token
+	 */
+	public long getMask() {
+		return mask;
+	}
+
+	/**
+	 * Returns the tokens belonging to c
+	 *
+	 * @param c 'X' or 'O'
+	 * @return mask with one bit per token
+	 * @throws IllegalArgumentException if c is not 'X' or 'O'
+	 */
+	public long getTokens(char c) throws IllegalArgumentException {
+		if (c != 'X' && c != 'O')
+			throw new IllegalArgumentException("Unknown token " + c);
+		return c == getSideToMove() ? current : mask ^ current;
+	}
+
+	/**
+	 * Returns the number of tokens played so far
+	 *
+	 * @return number of tokens on the board
+	 */
+	public int getMoveCount() {
+		return Long.bitCount(mask);
+	}
+
+	/**
+	 * Returns the token of the player to move
+	 *
+	 * @return 'X' or 'O'
+	 */
+	public char getSideToMove() {
+		return getMoveCount() % 2 == 0 ? 'X' : 'O';
+	}
+
+	/**
+	 * Returns the transposition table key of the position
+	 *
+	 * @return current + mask, unique for the board
+	 */
+	public long key() {
+		return TranspositionTable.key(current, mask);
+	}
+
+	/**
+	 * Sets up a new game at this position. The tokens are set column by column,
+	 * bottom first, so takebacks on the new board remove them in that order.
+	 *
+	 * @return game whose board holds this position
+	 */
+	public Connect4 toGame() {
+		Connect4 connect4 = new Connect4(rules);
+		GameBoard gb = connect4.getGameBoard();
+		long x = getTokens('X');
+		for (int col = 0; col < rules.getCols(); col++) {
+			for (int h = 0; h < rules.getRows(); h++) {
+				long bit = layout.cellBit(col, h);
+				if ((mask & bit) == 0)
+					break;
+				gb.setToken(col + 1, (x & bit) != 0 ? 'X' : 'O');
+			}
+		}
+		return connect4;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Position))
+			return false;
+		Position p = (Position) o;
+		return current == p.current && mask == p.mask && rules.equals(p.rules);
+	}
+
+	@Override
+	public int hashCode() {
+		long k = key() * 0x9E3779B97F4A7C15L;
+		return (int) (k ^ (k >>> 32)) * 31 + rules.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		long x = getTokens('X');
+		for (int h = rules.getRows() - 1; h >= 0; h--) {
+			sb.append('|');
+			for (int col = 0; col < rules.getCols(); col++) {
+				long bit = layout.cellBit(col, h);
+				sb.append((mask & bit) == 0 ? ' ' : (x & bit) != 0 ? 'X' : 'O').append('|');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		layout = BitboardLayout.of(rules);
+	}
+}
@@ -0,0 +1,291 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * CPU budget shared by every computer search of a server. A fixed number of
+ * searches, normally one per core, run with the time and nodes they ask for.
+ * When more are running or waiting for a worker, every new search gets its
+ * share of the slots, so under load the computer searches less deep instead
+ * of every move taking longer. On a server whose searches run on an
+ * EngineWorkerPool no more searches run than there are workers, so it is the
+ * requests waiting in the pool's queue that make the load.
+ * <p>
+ * Each session also has its own limits: a time and node limit per move and a
+ * total for the whole game, spread over the moves the computer has left.
+ * Counters record how often each limit cut a request short.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ * @see Connect4ComputerPlayer
+ */
+public class SearchBudget {
+	private final int slots;
+	private final long minMillis;
+	private final IntSupplier queued;
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final AtomicLong grants = new AtomicLong();
+	private final AtomicLong loadClamps = new AtomicLong();
+	private final AtomicLong sessionClamps = new AtomicLong();
+	private final AtomicLong requestedMillis = new AtomicLong();
+	private final AtomicLong grantedMillis = new AtomicLong();
+
+	/**
+	 * Creates a budget with one slot per core
+	 */
+	public SearchBudget() {
+		this(Runtime.getRuntime().availableProcessors(), 5);
+	}
+
+	/**
+	 * Creates a budget
+	 *
+	 * @param slots     searches that may run at full strength at once
+	 * @param minMillis least time a search is given however loaded the server
+	 * @throws IllegalArgumentException if slots or minMillis is below 1
+	 */
+	public SearchBudget(int slots, long minMillis) throws IllegalArgumentException {
+		this(slots, minMillis, () -> 0);
+	}
+
+	/**
+	 * Creates a budget with one slot per worker of a pool, counting the
+	 * requests waiting in its queue as load
+	 *
+	 * @param pool workers the searches run on
+	 */
+	public SearchBudget(EngineWorkerPool pool) {
+		this(pool.getWorkers(), 5, pool::getQueued);
+	}
+
+	/**
+	 * Creates a budget that also counts searches waiting to start
+	 *
+	 * @param slots     searches that may run at full strength at once
+	 * @param minMillis least time a search is given however loaded the server
+	 * @param queued    number of searches waiting to start, such as
+	 *                  EngineWorkerPool.getQueued
+	 * @throws IllegalArgumentException if slots or minMillis is below 1
+	 */
+	public SearchBudget(int slots, long minMillis, IntSupplier queued) throws IllegalArgumentException {
+		if (slots < 1 || minMillis < 1)
+			throw new IllegalArgumentException("Need a slot and a positive minimum time");
+		this.slots = slots;
+		this.minMillis = minMillis;
+		this.queued = queued;
+	}
+
+	/**
+	 * Limits of one game, charged with the time and nodes of every move
+	 */
+	public final class Session {
+		private final long moveMillis;
+		private final long moveNodes;
+		private long millisLeft;
+		private long nodesLeft;
+
+		private Session(long moveMillis, long moveNodes, long sessionMillis, long sessionNodes) {
+			this.moveMillis = moveMillis;
+			this.moveNodes = moveNodes;
+			millisLeft = sessionMillis;
+			nodesLeft = sessionNodes;
+		}
+
+		/**
+		 * Takes a slot for the next move. The grant must be closed when the
+		 * search ends, best with try-with-resources.
+		 *
+		 * @param movesLeft moves the computer may still have to make, at least 1
+		 * @return time and nodes the move may use
+		 */
+		public synchronized Grant acquire(int movesLeft) {
+			long millis = moveMillis;
+			long nodes = moveNodes;
+			int moves = Math.max(1, movesLeft);
+			boolean clamped = false;
+			// spread what is left of the game over the remaining moves
+			if (millisLeft / moves < millis) {
+				millis = millisLeft / moves;
+				clamped = true;
+			}
+			if (nodesLeft != Long.MAX_VALUE && nodesLeft / moves < nodes) {
+				nodes = nodesLeft / moves;
+				clamped = true;
+			}
+			if (clamped)
+				sessionClamps.incrementAndGet();
+			return new Grant(this, millis, nodes);
+		}
+
+		private synchronized void charge(long millis, long nodes) {
+			millisLeft = Math.max(0, millisLeft - millis);
+			if (nodesLeft != Long.MAX_VALUE)
+				nodesLeft = Math.max(0, nodesLeft - nodes);
+		}
+
+		/**
+		 * Returns the thinking time left for the game
+		 *
+		 * @return milliseconds left
+		 */
+		public synchronized long getMillisLeft() {
+			return millisLeft;
+		}
+
+		/**
+		 * Returns the nodes left for the game
+		 *
+		 * @return nodes left
+		 */
+		public synchronized long getNodesLeft() {
+			return nodesLeft;
+		}
+	}
+
+	/**
+	 * The time and nodes given to one search. Closing it frees the slot and
+	 * charges the session.
+	 */
+	public final class Grant implements AutoCloseable {
+		private final Session session;
+		private final long millis;
+		private final long nodes;
+		private final long start = System.nanoTime();
+		private long used;
+		private boolean closed;
+
+		private Grant(Session session, long millis, long nodes) {
+			this.session = session;
+			int running = active.incrementAndGet();
+			peak.accumulateAndGet(running, Math::max);
+			long granted = millis;
+			long grantedNodes = nodes;
+			// the searches waiting behind this one share the slots with it
+			int load = running + queued.getAsInt();
+			if (load > slots) {
+				granted = millis * slots / load;
+				grantedNodes = nodes == Long.MAX_VALUE ? nodes : nodes / load * slots;
+				loadClamps.incrementAndGet();
+			}
+			this.millis = Math.max(minMillis, granted);
+			this.nodes = Math.max(1, grantedNodes);
+			grants.incrementAndGet();
+			requestedMillis.addAndGet(millis);
+			grantedMillis.addAndGet(this.millis);
+		}
+
+		/**
+		 * Returns the time the search may take
+		 *
+		 * @return milliseconds, at least the budget's minimum
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Returns the nodes the search may visit
+		 *
+		 * @return node limit, at least 1
+		 */
+		public long getNodes() {
+			return nodes;
+		}
+
+		/**
+		 * Records the nodes the search visited, charged to the session on close
+		 *
+		 * @param nodes nodes visited
+		 */
+		public void addNodes(long nodes) {
+			used += nodes;
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			active.decrementAndGet();
+			session.charge((System.nanoTime() - start) / 1000000, used);
+		}
+	}
+
+	/**
+	 * Starts the limits of a new game
+	 *
+	 * @param moveMillis    time per move in milliseconds, at least 1
+	 * @param moveNodes     nodes per move, Long.MAX_VALUE for no limit
+	 * @param sessionMillis thinking time for the whole game in milliseconds
+	 * @param sessionNodes  nodes for the whole game, Long.MAX_VALUE for no
+	 *                      limit
+	 * @return the session's limits
+	 * @throws IllegalArgumentException if a limit is below 1
+	 */
+	public Session newSession(long moveMillis, long moveNodes, long sessionMillis, long sessionNodes)
+			throws IllegalArgumentException {
+		if (moveMillis < 1 || moveNodes < 1 || sessionMillis < 1 || sessionNodes < 1)
+			throw new IllegalArgumentException("Limits must be at least 1");
+		return new Session(moveMillis, moveNodes, sessionMillis, sessionNodes);
+	}
+
+	/**
+	 * Checks if the searches running and waiting fill every slot, when
+	 * background work such as pondering should wait
+	 *
+	 * @return true if every slot is taken
+	 */
+	public boolean isLoaded() {
+		return active.get() + queued.getAsInt() >= slots;
+	}
+
+	/**
+	 * Returns the number of searches running
+	 *
+	 * @return open grants
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of searches granted so far
+	 *
+	 * @return grant count
+	 */
+	public long getGrants() {
+		return grants.get();
+	}
+
+	/**
+	 * Returns how often a search got less because the server was loaded
+	 *
+	 * @return load clamp count
+	 */
+	public long getLoadClamps() {
+		return loadClamps.get();
+	}
+
+	/**
+	 * Returns how often a search got less because its game was running out
+	 * of budget
+	 *
+	 * @return session clamp count
+	 */
+	public long getSessionClamps() {
+		return sessionClamps.get();
+	}
+
+	@Override
+	public String toString() {
+		long requested = requestedMillis.get();
+		return String.format(
+				"searches %d, load clamps %d, session clamps %d, peak %d of %d slots, granted %.0f%% of %d ms",
+				grants.get(), loadClamps.get(), sessionClamps.get(), peak.get(), slots,
+				requested == 0 ? 100.0 : 100.0 * grantedMillis.get() / requested, requested);
+	}
+}
@@ -0,0 +1,338 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import core.Connect4.Connect4Constants;
+import core.Connect4.GameBoard;
+
+/**
+ * Load comparison of the blocking Connect4Server with platform and with
+ * virtual session threads and of Connect4NioServer, with clients speaking
+ * the legacy and the compact protocol of Connect4Wire. For each combination
+ * a server is started without a window or console log, one game against the
+ * computer is played, and a number of two-player games are
+ * opened and left waiting, every session blocked in a read. The games are
+ * then played out a move at a time in turn, so every move is served while
+ * all the other sessions stay open.
+ * <p>
+ * The report gives the time to open the games, the platform threads and
+ * heap of the process with every game open, its resident memory where the
+ * system reports it, and the mean and worst time from a move to the
+ * opponent hearing of it. A compact client fails the run if the server
+ * answers in the legacy protocol.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ * @see SessionThreads
+ */
+public class ServerLoadTest implements Connect4Constants {
+	private final int games;
+
+	/**
+	 * Creates a load test
+	 *
+	 * @param games two-player games to hold open at once, at least 1
+	 * @throws IllegalArgumentException if games is below 1
+	 */
+	public ServerLoadTest(int games) throws IllegalArgumentException {
+		if (games < 1)
+			throw new IllegalArgumentException("Need at least one game");
+		this.games = games;
+	}
+
+	/**
+	 * Two clients of one game. Player 1 stacks column 1 and wins on its
+	 * fourth move, player 2 stacks column 2.
+	 */
+	private static final class Game {
+		private final Connect4Wire[] wires = new Connect4Wire[2];
+
+		void connect(int player, int port, boolean compact) throws IOException {
+			wires[player] = Connect4Wire.connect(new Socket("localhost", port), true, compact);
+			expect(wires[player].getVersion(), compact ? Connect4Wire.COMPACT : Connect4Wire.LEGACY);
+			expect(wires[player].receivePlayer(), player == 0 ? PLAYER1 : PLAYER2);
+		}
+
+		/**
+		 * Plays a move and reads both players' replies
+		 *
+		 * @return true if the move ended the game
+		 */
+		boolean move(int player, boolean last) throws IOException {
+			wires[player].sendMove(0, player);
+			if (wires[player].receiveResult() < 0)
+				throw new IOException("Move refused");
+			if (last)
+				expect(wires[player].receiveStatus(), PLAYER1_WON);
+			int other = 1 - player;
+			expect(wires[other].receiveStatus(), last ? PLAYER1_WON : CONTINUE);
+			expect(wires[other].receiveColumn(), player);
+			return last;
+		}
+
+		void close() throws IOException {
+			for (Connect4Wire wire : wires)
+				wire.close();
+		}
+
+		private static void expect(int actual, int expected) throws IOException {
+			if (actual != expected)
+				throw new IOException("Expected " + expected + " but read " + actual);
+		}
+	}
+
+	/**
+	 * Measurements of one mode
+	 */
+	public static final class Result {
+		private final String mode;
+		private long openMillis;
+		private int threads;
+		private long heapBytes;
+		private long residentBytes;
+		private long moves;
+		private long moveNanos;
+		private long worstNanos;
+
+		Result(String mode) {
+			this.mode = mode;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-16s %,10d ms %,9d %,10d MB %10s %10.3f ms %10.1f ms", mode, openMillis, threads,
+					heapBytes >> 20, residentBytes < 0 ? "n/a" : (residentBytes >> 20) + " MB",
+					moves == 0 ? 0 : moveNanos / 1e6 / moves, worstNanos / 1e6);
+		}
+	}
+
+	/**
+	 * Opens every game on a server with the given session threads, plays them
+	 * out and stops the server
+	 *
+	 * @param threads session threads for the server
+	 * @param compact true for clients that speak the compact protocol, false
+	 *                for legacy clients
+	 * @param port    port to listen on
+	 * @return the measurements
+	 * @throws IOException if a client reads something unexpected
+	 */
+	public Result run(SessionThreads threads, boolean compact, int port) throws IOException {
+		Result result = new Result((threads.isVirtual() ? "virtual" : "platform") + (compact ? "/compact" : "/legacy"));
+		Connect4Server server = new Connect4Server(port, threads, new ServerLog(ServerLog.DEFAULT_CAPACITY));
+		threads.start(server::serve);
+		try {
+			play(result, compact, port);
+		} finally {
+			server.stop();
+		}
+		return result;
+	}
+
+	/**
+	 * Opens every game on a Connect4NioServer, plays them out and stops the
+	 * server
+	 *
+	 * @param loops   event loop threads of the server
+	 * @param compact true for clients that speak the compact protocol, false
+	 *                for legacy clients
+	 * @param port    port to listen on
+	 * @return the measurements
+	 * @throws IOException if the port cannot be opened or a client reads
+	 *                     something unexpected
+	 */
+	public Result runNio(int loops, boolean compact, int port) throws IOException {
+		Result result = new Result("nio" + (compact ? "/compact" : "/legacy"));
+		Connect4NioServer server = new Connect4NioServer(port, loops, 50, Connect4Rules.STANDARD,
+				new EngineWorkerPool(), new ServerLog(ServerLog.DEFAULT_CAPACITY));
+		try {
+			play(result, compact, port);
+		} finally {
+			server.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Plays a game against the computer, then opens every two-player game,
+	 * measures the process and plays the games out
+	 */
+	private void play(Result result, boolean compact, int port) throws IOException {
+		playComputer(port, compact);
+		List<Game> open = new ArrayList<Game>(games);
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < games; i++) {
+				Game game = new Game();
+				open.add(game);
+				connect(game, 0, port, compact);
+				game.connect(1, port, compact);
+				game.wires[0].receiveStart();
+				game.move(0, false);
+			}
+			result.openMillis = (System.nanoTime() - start) / 1000000;
+			System.gc();
+			Runtime rt = Runtime.getRuntime();
+			result.heapBytes = rt.totalMemory() - rt.freeMemory();
+			result.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			result.residentBytes = residentBytes();
+
+			// the games stay open until player 1's fourth move
+			for (int round = 0; round < 3; round++) {
+				for (Game game : open) {
+					for (int player = 1; player >= 0; player--) {
+						long t = System.nanoTime();
+						game.move(player, player == 0 && round == 2);
+						long nanos = System.nanoTime() - t;
+						result.moves++;
+						result.moveNanos += nanos;
+						result.worstNanos = Math.max(result.worstNanos, nanos);
+					}
+				}
+			}
+		} finally {
+			for (Game game : open) {
+				if (game.wires[0] != null && game.wires[1] != null)
+					game.close();
+			}
+		}
+	}
+
+	/**
+	 * Plays the most central open column every move against the computer
+	 * until the game ends, waiting for the accept loop to start listening
+	 */
+	private static void playComputer(int port, boolean compact) throws IOException {
+		Connect4Wire wire = null;
+		for (int attempt = 0; wire == null; attempt++) {
+			try {
+				wire = Connect4Wire.connect(new Socket("localhost", port), false, compact);
+			} catch (java.net.ConnectException e) {
+				if (attempt == 100)
+					throw e;
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+		try {
+			Game.expect(wire.getVersion(), compact ? Connect4Wire.COMPACT : Connect4Wire.LEGACY);
+			Game.expect(wire.receivePlayer(), PLAYER1);
+			wire.receiveStart();
+			GameBoard gb = new Connect4().getGameBoard();
+			BitboardLayout layout = BitboardLayout.of(Connect4Rules.STANDARD);
+			while (true) {
+				int column = -1;
+				for (int col : layout.centerOrder()) {
+					if (gb.isValidColumn(col)) {
+						column = col;
+						break;
+					}
+				}
+				wire.sendMove(0, column);
+				if (wire.receiveResult() < 0)
+					throw new IOException("Move refused");
+				gb.setToken(column + 1, 'X');
+				if (wire.receiveStatus() != CONTINUE)
+					return;
+				gb.setToken(wire.receiveColumn() + 1, 'O');
+			}
+		} finally {
+			wire.close();
+		}
+	}
+
+	/**
+	 * Connects player 1, waiting for the accept loop to start listening
+	 */
+	private static void connect(Game game, int player, int port, boolean compact) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				game.connect(player, port, compact);
+				return;
+			} catch (java.net.ConnectException e) {
+				if (attempt == 100)
+					throw e;
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the resident memory of the process on Linux
+	 *
+	 * @return bytes, -1 where the system does not report it
+	 */
+	private static long residentBytes() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			for (String line; (line = reader.readLine()) != null;) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not Linux
+		}
+		return -1;
+	}
+
+	/**
+	 * Runs the comparison and prints a line per run. Run it on Java 21 or
+	 * later for the virtual mode; older runtimes fall back to platform
+	 * threads and say so.
+	 *
+	 * @param args optional --games=N (default 2000), --port=N (first port,
+	 *             default 8100, one more for each run),
+	 *             --modes=platform,virtual,nio and --protocols=legacy,compact
+	 * @throws IOException if a game goes wrong
+	 */
+	public static void main(String[] args) throws IOException {
+		int games = 2000;
+		int port = 8100;
+		String[] modes = { "platform", "virtual", "nio" };
+		String[] protocols = { "legacy", "compact" };
+		for (String arg : args) {
+			if (arg.startsWith("--games="))
+				games = Integer.parseInt(arg.substring(8));
+			else if (arg.startsWith("--port="))
+				port = Integer.parseInt(arg.substring(7));
+			else if (arg.startsWith("--modes="))
+				modes = arg.substring(8).split(",");
+			else if (arg.startsWith("--protocols="))
+				protocols = arg.substring(12).split(",");
+			else
+				throw new IllegalArgumentException("Unknown argument " + arg);
+		}
+		if (!SessionThreads.isVirtualAvailable())
+			System.out.println("Virtual threads need Java 21; the virtual mode runs on platform threads");
+		ServerLoadTest test = new ServerLoadTest(games);
+		System.out.printf("%,d games, %,d connections%n", games, 2 * games);
+		System.out.printf("%-16s %13s %9s %13s %10s %13s %13s%n", "mode", "open", "threads", "heap", "resident",
+				"mean move", "worst move");
+		for (String mode : modes) {
+			for (String protocol : protocols) {
+				if (!protocol.equals("legacy") && !protocol.equals("compact"))
+					throw new IllegalArgumentException("Unknown protocol " + protocol);
+				boolean compact = protocol.equals("compact");
+				if (mode.equals("nio"))
+					System.out.println(test.runNio(Runtime.getRuntime().availableProcessors(), compact, port++));
+				else
+					System.out.println(test.run(SessionThreads.forMode(mode, "session"), compact, port++));
+			}
+		}
+	}
+}
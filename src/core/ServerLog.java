@@ -0,0 +1,217 @@
+package core;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log of a server: the latest lines in a fixed-size ring buffer, so a server
+ * that runs for weeks holds no more than its capacity, and optionally every
+ * line in a file. Lines bound for the file are queued and written by a
+ * background thread, so logging never waits on the disk; when the queue is
+ * full the line is left out of the file and counted as dropped.
+ * <p>
+ * Viewers such as the server window register a listener, which is called
+ * after every line on the logging thread, and read the buffer with getLines.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ */
+public final class ServerLog {
+	/** Lines a server keeps when none is given */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private static final int QUEUE = 8192;
+	/** Queued to stop the file writer, compared by identity */
+	private static final String CLOSE = new String("close");
+
+	private final String[] lines;
+	private final PrintStream echo;
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+	private final AtomicLong dropped = new AtomicLong();
+	private long count;
+	private BlockingQueue<String> queue;
+	private Thread writer;
+
+	/**
+	 * Creates a log that keeps the latest lines in memory only
+	 *
+	 * @param capacity lines kept, at least 1
+	 * @throws IllegalArgumentException if capacity is below 1
+	 */
+	public ServerLog(int capacity) throws IllegalArgumentException {
+		this(capacity, null);
+	}
+
+	/**
+	 * Creates a log that also prints every line
+	 *
+	 * @param capacity lines kept, at least 1
+	 * @param echo     stream to print every line to, null for none
+	 * @throws IllegalArgumentException if capacity is below 1
+	 */
+	public ServerLog(int capacity, PrintStream echo) throws IllegalArgumentException {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		lines = new String[capacity];
+		this.echo = echo;
+	}
+
+	/**
+	 * Starts writing every line from now on to a file, after what it already
+	 * holds
+	 *
+	 * @param fileName file to append to
+	 * @throws IOException           if the file cannot be opened
+	 * @throws IllegalStateException if a file is already open
+	 */
+	public synchronized void openFile(String fileName) throws IOException, IllegalStateException {
+		if (queue != null)
+			throw new IllegalStateException("Log file already open");
+		Writer out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8));
+		BlockingQueue<String> pending = new ArrayBlockingQueue<String>(QUEUE);
+		writer = new Thread(() -> write(pending, out), "server-log");
+		writer.setDaemon(true);
+		writer.start();
+		queue = pending;
+	}
+
+	/**
+	 * File writer loop: writes lines as they come and flushes whenever the
+	 * queue runs empty
+	 */
+	private static void write(BlockingQueue<String> pending, Writer out) {
+		try {
+			for (String line = pending.take(); line != CLOSE; line = pending.take()) {
+				out.write(line);
+				out.write(System.lineSeparator());
+				if (pending.isEmpty())
+					out.flush();
+			}
+		} catch (InterruptedException e) {
+			// closed without draining
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Adds a line
+	 *
+	 * @param line text of the line, without a line separator
+	 */
+	public void log(String line) {
+		synchronized (this) {
+			lines[(int) (count++ % lines.length)] = line;
+			if (queue != null && !queue.offer(line))
+				dropped.incrementAndGet();
+		}
+		if (echo != null)
+			echo.println(line);
+		for (Runnable listener : listeners)
+			listener.run();
+	}
+
+	/**
+	 * Returns the lines still in the buffer
+	 *
+	 * @return up to the capacity's latest lines, oldest first
+	 */
+	public synchronized List<String> getLines() {
+		int n = (int) Math.min(count, lines.length);
+		List<String> latest = new ArrayList<String>(n);
+		for (long i = count - n; i < count; i++)
+			latest.add(lines[(int) (i % lines.length)]);
+		return latest;
+	}
+
+	/**
+	 * Returns the number of lines logged, including those the buffer no
+	 * longer holds
+	 *
+	 * @return lines logged
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of lines the buffer holds at most
+	 *
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return lines.length;
+	}
+
+	/**
+	 * Returns the number of lines left out of the file because the writer
+	 * fell behind
+	 *
+	 * @return dropped lines
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Registers a listener called after every line, on the thread that logged
+	 * it
+	 *
+	 * @param listener callback, which must not block
+	 */
+	public void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 *
+	 * @param listener callback to remove
+	 */
+	public void removeListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Writes out the lines queued for the file and closes it. Lines logged
+	 * afterwards stay in the buffer only.
+	 */
+	public void close() {
+		Thread stopping;
+		BlockingQueue<String> closing;
+		synchronized (this) {
+			stopping = writer;
+			closing = queue;
+			writer = null;
+			queue = null;
+		}
+		if (stopping == null)
+			return;
+		try {
+			closing.put(CLOSE);
+			stopping.join();
+		} catch (InterruptedException e) {
+			stopping.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
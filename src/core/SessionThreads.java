@@ -0,0 +1,134 @@
+package core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts the threads a blocking server runs its sessions on, either one
+ * platform thread per session or one virtual thread per session. A session
+ * blocked in readInt on a virtual thread holds only a small stack on the
+ * heap, not an operating system thread, so thousands of open games cost
+ * little more than the sockets.
+ * <p>
+ * The code is built for Java 8, so virtual threads are created by reflection
+ * and are only available on Java 21 and later. Asking for them on an older
+ * runtime gives platform threads instead.
+ * <p>
+ * Code run on virtual threads should not block while holding a monitor: on
+ * Java 21 a virtual thread that waits inside synchronized pins its carrier
+ * thread. Locks held across waits are ReentrantLocks for that reason.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ */
+public final class SessionThreads {
+	private static final ThreadFactory VIRTUAL = virtualFactory();
+
+	private final String name;
+	private final boolean virtual;
+	private final AtomicLong started = new AtomicLong();
+
+	private SessionThreads(String name, boolean virtual) {
+		this.name = name;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Looks up Thread.ofVirtual().factory()
+	 *
+	 * @return the factory, null before Java 21
+	 */
+	private static ThreadFactory virtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if the runtime has virtual threads
+	 *
+	 * @return true on Java 21 and later
+	 */
+	public static boolean isVirtualAvailable() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Starts every session on a platform thread of its own
+	 *
+	 * @param name prefix of the thread names
+	 * @return platform session threads
+	 */
+	public static SessionThreads platform(String name) {
+		return new SessionThreads(name, false);
+	}
+
+	/**
+	 * Starts every session on a virtual thread, or on a platform thread if the
+	 * runtime has no virtual threads
+	 *
+	 * @param name prefix of the thread names
+	 * @return virtual session threads where available
+	 */
+	public static SessionThreads virtual(String name) {
+		return new SessionThreads(name, isVirtualAvailable());
+	}
+
+	/**
+	 * Returns the session threads of a mode given by name
+	 *
+	 * @param mode "platform" or "virtual"
+	 * @param name prefix of the thread names
+	 * @return session threads of that mode
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	public static SessionThreads forMode(String mode, String name) throws IllegalArgumentException {
+		if ("platform".equals(mode))
+			return platform(name);
+		if ("virtual".equals(mode))
+			return virtual(name);
+		throw new IllegalArgumentException("Unknown thread mode " + mode);
+	}
+
+	/**
+	 * Starts a task on a new thread
+	 *
+	 * @param task session or accept loop to run
+	 * @return the started thread
+	 */
+	public Thread start(Runnable task) {
+		Thread thread = virtual ? VIRTUAL.newThread(task) : new Thread(task);
+		thread.setName(name + "-" + started.getAndIncrement());
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Checks if sessions run on virtual threads
+	 *
+	 * @return true for virtual threads, false for platform threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Returns the number of threads started so far
+	 *
+	 * @return thread count
+	 */
+	public long getStarted() {
+		return started.get();
+	}
+
+	@Override
+	public String toString() {
+		return (virtual ? "virtual" : "platform") + " threads, " + started.get() + " started";
+	}
+}
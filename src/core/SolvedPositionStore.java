@@ -0,0 +1,229 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Persistent key/value store of exactly solved positions, so later sessions
+ * reuse the work of earlier solves. The file is append-only: an 8 byte header
+ * followed by 8 byte records, each the canonical position key shifted left
+ * by 8 bits with the solver score in the low byte. Mirror images share one
+ * record. Records are loaded into an open-addressing table when the store is
+ * opened; new records are buffered and appended by flush.
+ * <p>
+ * A store may be shared by the threads of one process. Two processes must
+ * not append to the same file.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Solver
+ */
+public final class SolvedPositionStore {
+	/** File the solver uses when none is given */
+	public static final String DEFAULT_FILE = "connect4.solved";
+
+	private static final int MAGIC = 0x43345356; // "C4SV"
+	private static final int HEADER_BYTES = 8;
+	private static final int RECORD_BYTES = 8;
+	private static final int PENDING = 512;
+
+	private final File file;
+	private final BitboardLayout layout;
+	private long[] keys = new long[1 << 12];
+	private byte[] scores = new byte[1 << 12];
+	private int size;
+	private final ByteBuffer pending = ByteBuffer.allocate(PENDING * RECORD_BYTES);
+	private FileChannel channel;
+
+	/**
+	 * Opens a store, creating the file if it does not exist
+	 *
+	 * @param file  store file
+	 * @param rules Board geometry and winning run length
+	 * @throws IOException if the file cannot be read or was written for other
+	 *                     rules
+	 * @throws IllegalArgumentException if the position keys need more than 56
+	 *                                  bits
+	 */
+	public SolvedPositionStore(File file, Connect4Rules rules) throws IOException, IllegalArgumentException {
+		layout = BitboardLayout.of(rules);
+		if ((rules.getRows() + 1) * rules.getCols() > 55)
+			throw new IllegalArgumentException("Board " + rules + " is too large for the solved position store");
+		this.file = file;
+		if (file.isFile() && file.length() > 0)
+			load(rules);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		if (channel.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).put((byte) rules.getRows()).put((byte) rules.getCols())
+					.put((byte) rules.getConnect()).put((byte) 0).flip();
+			while (header.hasRemaining())
+				channel.write(header);
+		} else if ((channel.size() - HEADER_BYTES) % RECORD_BYTES != 0) {
+			// drop a record cut short by a crash so new records stay aligned
+			channel.truncate(channel.size() - (channel.size() - HEADER_BYTES) % RECORD_BYTES);
+		}
+	}
+
+	/**
+	 * Opens DEFAULT_FILE from the working directory for the standard rules
+	 *
+	 * @return the store, null if it cannot be opened
+	 */
+	public static SolvedPositionStore openDefault() {
+		try {
+			return new SolvedPositionStore(new File(DEFAULT_FILE), Connect4Rules.STANDARD);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Reads every record of the file. A partly written last record is ignored.
+	 */
+	private void load(Connect4Rules rules) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a solved position store");
+			Connect4Rules stored = new Connect4Rules(in.readByte(), in.readByte(), in.readByte());
+			in.readByte();
+			if (!stored.equals(rules))
+				throw new IOException(file + " holds " + stored + " positions, not " + rules);
+			long records = (file.length() - HEADER_BYTES) / RECORD_BYTES;
+			for (long i = 0; i < records; i++) {
+				long record = in.readLong();
+				insert(record >>> 8, (byte) record);
+			}
+		} catch (EOFException e) {
+			throw new IOException(file + " is truncated", e);
+		}
+	}
+
+	/**
+	 * Returns the number of solved positions
+	 *
+	 * @return record count, mirror pairs counted once
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Looks up a solved position
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @return solver score for the player to move, Integer.MIN_VALUE if the
+	 *         position has not been solved
+	 */
+	public synchronized int get(long current, long mask) {
+		int i = find(canonicalKey(current, mask));
+		return keys[i] == 0 ? Integer.MIN_VALUE : scores[i];
+	}
+
+	/**
+	 * Adds a solved position. The record is written by the next flush.
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @param score   solver score for the player to move
+	 */
+	public synchronized void put(long current, long mask, int score) {
+		long key = canonicalKey(current, mask);
+		if (!insert(key, (byte) score))
+			return;
+		pending.putLong(key << 8 | (score & 0xFF));
+		if (!pending.hasRemaining())
+			flush();
+	}
+
+	/**
+	 * Appends the records added since the last flush to the file
+	 */
+	public synchronized void flush() {
+		pending.flip();
+		try {
+			while (pending.hasRemaining())
+				channel.write(pending);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Flushes and closes the file. Lookups keep working afterwards.
+	 */
+	public synchronized void close() {
+		if (channel == null)
+			return;
+		flush();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+	}
+
+	/**
+	 * Key of a position or its mirror image, whichever is smaller, plus one so
+	 * that 0 marks an empty slot
+	 */
+	private long canonicalKey(long current, long mask) {
+		long key = TranspositionTable.key(current, mask);
+		long mirrored = TranspositionTable.key(layout.mirror(current), layout.mirror(mask));
+		return Math.min(key, mirrored) + 1;
+	}
+
+	/**
+	 * @return true if the key was not in the table yet
+	 */
+	private boolean insert(long key, byte score) {
+		if (2 * (size + 1) > keys.length)
+			grow();
+		int i = find(key);
+		if (keys[i] != 0)
+			return false;
+		keys[i] = key;
+		scores[i] = score;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Linear probe for a key
+	 *
+	 * @return slot holding the key, or the empty slot where it belongs
+	 */
+	private int find(long key) {
+		int m = keys.length - 1;
+		int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & m;
+		while (keys[i] != 0 && keys[i] != key)
+			i = (i + 1) & m;
+		return i;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		byte[] oldScores = scores;
+		keys = new long[oldKeys.length * 2];
+		scores = new byte[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int j = find(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				scores[j] = oldScores[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package core;
+
+import java.util.Random;
+
+/**
+ * Static evaluation for the search, kept up to date as tokens are played and
+ * taken back instead of being recomputed at every leaf. The board is split
+ * into every window of connect cells a player could win with; each window
+ * keeps its token counts, and a move only rescores the windows through its
+ * cell.
+ * <p>
+ * A window holding one player's tokens scores a threat when a single cell is
+ * missing and a two when two are missing. Threats score more when their empty
+ * cell has the parity that favours their owner: odd rows, counted from the
+ * bottom, for 'X' and even rows for 'O'. Every token also scores the number of
+ * windows through its cell, which is BitboardLayout.positionalScore.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Engine
+ * @see BitboardLayout
+ */
+public class ThreatEvaluator {
+	/** Score of a window missing one cell */
+	public static final int THREAT = 12;
+	/** Extra score of a threat on a row of its owner's parity */
+	public static final int PARITY = 12;
+	/** Score of a window missing two cells */
+	public static final int TWO = 3;
+
+	private static final int O_TOKEN = 64;
+
+	private final BitboardLayout layout;
+	private final long[] windowCells;
+	private final int[] windowSum;
+	private final int[][] cellWindows;
+	/** Score of a window by its packed counts, 'X' tokens plus 64 per 'O' */
+	private final int[] countScore;
+	/** 1 or -1 if the packed counts are a threat of 'X' or 'O', else 0 */
+	private final int[] countThreat;
+	/** 1 if a cell is on an odd row from the bottom, -1 on an even row */
+	private final int[] rowParity = new int[64];
+	private final int[] counts;
+	private final int[] occupied;
+	private int score;
+
+	/**
+	 * Creates an evaluator for an empty board
+	 *
+	 * @param layout layout of the board
+	 */
+	public ThreatEvaluator(BitboardLayout layout) {
+		this.layout = layout;
+		Connect4Rules rules = layout.getRules();
+		int connect = rules.getConnect();
+		int rows = rules.getRows();
+		int cols = rules.getCols();
+
+		int[][] dirs = { { 1, 0 }, { 0, 1 }, { 1, 1 }, { 1, -1 } };
+		long[] windows = new long[4 * rules.getCells()];
+		int n = 0;
+		for (int col = 0; col < cols; col++) {
+			for (int h = 0; h < rows; h++) {
+				for (int[] d : dirs) {
+					int endCol = col + (connect - 1) * d[0];
+					int endH = h + (connect - 1) * d[1];
+					if (endCol < 0 || endCol >= cols || endH < 0 || endH >= rows)
+						continue;
+					long w = 0;
+					for (int i = 0; i < connect; i++)
+						w |= layout.cellBit(col + i * d[0], h + i * d[1]);
+					windows[n++] = w;
+				}
+			}
+		}
+		windowCells = new long[n];
+		windowSum = new int[n];
+		int[] perCell = new int[64];
+		for (int w = 0; w < n; w++) {
+			windowCells[w] = windows[w];
+			for (long b = windows[w]; b != 0; b &= b - 1) {
+				int cell = Long.numberOfTrailingZeros(b);
+				windowSum[w] += cell;
+				perCell[cell]++;
+			}
+		}
+		cellWindows = new int[64][];
+		for (int cell = 0; cell < 64; cell++)
+			cellWindows[cell] = new int[perCell[cell]];
+		int[] fill = new int[64];
+		for (int w = 0; w < n; w++) {
+			for (long b = windowCells[w]; b != 0; b &= b - 1) {
+				int cell = Long.numberOfTrailingZeros(b);
+				cellWindows[cell][fill[cell]++] = w;
+			}
+		}
+		counts = new int[n];
+		occupied = new int[n];
+
+		countScore = new int[O_TOKEN * O_TOKEN];
+		countThreat = new int[O_TOKEN * O_TOKEN];
+		for (int tokens = 1; tokens < connect; tokens++) {
+			int s = tokens == connect - 1 ? THREAT : tokens == connect - 2 ? TWO : 0;
+			int t = tokens == connect - 1 ? 1 : 0;
+			countScore[tokens] = s;
+			countThreat[tokens] = t;
+			countScore[tokens * O_TOKEN] = -s;
+			countThreat[tokens * O_TOKEN] = -t;
+		}
+		// height 0 is the first row from the bottom, an odd row
+		for (int cell = 0; cell < 64; cell++)
+			rowParity[cell] = (cell % layout.getHeight1()) % 2 == 0 ? 1 : -1;
+	}
+
+	/**
+	 * Sets up the evaluator for a position, scanning every window
+	 *
+	 * @param x tokens of 'X'
+	 * @param o tokens of 'O'
+	 */
+	public void reset(long x, long o) {
+		score = layout.positionalScore(x, o);
+		for (int w = 0; w < windowCells.length; w++) {
+			counts[w] = Long.bitCount(x & windowCells[w]) + O_TOKEN * Long.bitCount(o & windowCells[w]);
+			occupied[w] = 0;
+			for (long b = (x | o) & windowCells[w]; b != 0; b &= b - 1)
+				occupied[w] += Long.numberOfTrailingZeros(b);
+			score += windowScore(w);
+		}
+	}
+
+	/**
+	 * Adds a token to the position
+	 *
+	 * @param bit  cell of the token
+	 * @param side 0 for 'X', 1 for 'O'
+	 */
+	public void play(long bit, int side) {
+		int cell = Long.numberOfTrailingZeros(bit);
+		int token = side == 0 ? 1 : O_TOKEN;
+		for (int w : cellWindows[cell]) {
+			score -= windowScore(w);
+			counts[w] += token;
+			occupied[w] += cell;
+			score += windowScore(w);
+		}
+		score += side == 0 ? cellWindows[cell].length : -cellWindows[cell].length;
+	}
+
+	/**
+	 * Takes back a token added by play
+	 *
+	 * @param bit  cell of the token
+	 * @param side 0 for 'X', 1 for 'O'
+	 */
+	public void undo(long bit, int side) {
+		int cell = Long.numberOfTrailingZeros(bit);
+		int token = side == 0 ? 1 : O_TOKEN;
+		for (int w : cellWindows[cell]) {
+			score -= windowScore(w);
+			counts[w] -= token;
+			occupied[w] -= cell;
+			score += windowScore(w);
+		}
+		score -= side == 0 ? cellWindows[cell].length : -cellWindows[cell].length;
+	}
+
+	/**
+	 * Returns the score of the current position
+	 *
+	 * @return score for 'X', negative if 'O' is better placed
+	 */
+	public int score() {
+		return score;
+	}
+
+	/**
+	 * Scores a position from scratch, the same value reset and play keep
+	 *
+	 * @param x tokens of 'X'
+	 * @param o tokens of 'O'
+	 * @return score for 'X'
+	 */
+	public int fullScore(long x, long o) {
+		int s = layout.positionalScore(x, o);
+		for (int w = 0; w < windowCells.length; w++) {
+			long cells = windowCells[w];
+			int c = Long.bitCount(x & cells) + O_TOKEN * Long.bitCount(o & cells);
+			s += score(c, Long.numberOfTrailingZeros(cells & ~(x | o)));
+		}
+		return s;
+	}
+
+	private int windowScore(int w) {
+		return score(counts[w], windowSum[w] - occupied[w]);
+	}
+
+	/**
+	 * Scores a window from its packed counts
+	 *
+	 * @param c     'X' tokens plus 64 per 'O' token
+	 * @param empty cell of the last empty square when one is left
+	 */
+	private int score(int c, int empty) {
+		int t = countThreat[c];
+		// a threat gains PARITY when its row parity matches its owner
+		return t == 0 ? countScore[c] : countScore[c] + (t == rowParity[empty] ? t * PARITY : 0);
+	}
+
+	/**
+	 * Times the incremental update against scoring every leaf from scratch on
+	 * the positions of random games, and checks that both give the same scores
+	 *
+	 * @param args optional number of games, default 20000
+	 */
+	public static void main(String[] args) {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		BitboardLayout layout = BitboardLayout.of(Connect4Rules.STANDARD);
+		ThreatEvaluator eval = new ThreatEvaluator(layout);
+		int cells = Connect4Rules.STANDARD.getCells();
+		long[][] moves = new long[games][cells];
+		long[][] xs = new long[games][cells];
+		long[][] os = new long[games][cells];
+		Random random = new Random(1);
+		for (int g = 0; g < games; g++) {
+			long x = 0;
+			long o = 0;
+			for (int n = 0; n < cells; n++) {
+				long possible = layout.possible(x | o);
+				for (int skip = random.nextInt(Long.bitCount(possible)); skip > 0; skip--)
+					possible &= possible - 1;
+				long bit = possible & -possible;
+				if (n % 2 == 0)
+					x |= bit;
+				else
+					o |= bit;
+				moves[g][n] = bit;
+				xs[g][n] = x;
+				os[g][n] = o;
+			}
+		}
+
+		long nodes = (long) games * cells;
+		for (int round = 0; round < 5; round++) {
+			long sum = 0;
+			long start = System.nanoTime();
+			for (long[] game : moves) {
+				for (int n = 0; n < cells; n++) {
+					eval.play(game[n], n & 1);
+					sum += eval.score();
+				}
+				for (int n = cells - 1; n >= 0; n--)
+					eval.undo(game[n], n & 1);
+			}
+			long incremental = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int g = 0; g < games; g++) {
+				for (int n = 0; n < cells; n++)
+					sum -= eval.fullScore(xs[g][n], os[g][n]);
+			}
+			long full = System.nanoTime() - start;
+			if (sum != 0 || eval.score() != 0)
+				throw new IllegalStateException("Incremental and full scores differ");
+			System.out.printf("%,d nodes  incremental (play + undo) %.1f ns/node  full scan %.1f ns/node%n", nodes,
+					(double) incremental / nodes, (double) full / nodes);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package core;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+
+import core.Connect4.GameBoard;
+
+/**
+ * Headless self-play harness. Every pair of player configurations plays a
+ * number of games on all cores, each game on its own Connect4 with no
+ * console output. Each pair of games starts from the same random opening
+ * with the colours swapped. The report gives every configuration's score,
+ * nodes per second and time per move, and an Elo difference with a 95%
+ * confidence interval for every pairing.
+ * <p>
+ * Configurations are written as random, depth:N, time:MS, mcts:PLAYOUTS or
+ * mcts-time:MS.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4ComputerPlayer
+ */
+public class Tournament {
+	private final List<Entrant> entrants;
+	private final Connect4Rules rules;
+	private final int gamesPerPair;
+	private final int openingPlies;
+	private final int threads;
+	private final long seed;
+	/** Wins of the lower index, draws and wins of the higher, per pairing */
+	private final long[][] pairResults;
+
+	/**
+	 * Creates a tournament
+	 *
+	 * @param entrants     player configurations, at least two
+	 * @param rules        Board geometry and winning run length
+	 * @param gamesPerPair games per pairing, rounded up to an even number
+	 * @param openingPlies random moves played before the players take over
+	 * @param threads      games played at once
+	 * @param seed         seed of the random openings
+	 */
+	public Tournament(List<Entrant> entrants, Connect4Rules rules, int gamesPerPair, int openingPlies, int threads,
+			long seed) {
+		if (entrants.size() < 2 || gamesPerPair < 1 || openingPlies < 0 || threads < 1)
+			throw new IllegalArgumentException("Need two entrants, a game per pair and a thread");
+		this.entrants = entrants;
+		this.rules = rules;
+		this.gamesPerPair = gamesPerPair + gamesPerPair % 2;
+		this.openingPlies = openingPlies;
+		this.threads = threads;
+		this.seed = seed;
+		pairResults = new long[entrants.size() * entrants.size()][3];
+	}
+
+	/**
+	 * A named way to create a computer player
+	 */
+	public static final class Entrant {
+		private final String name;
+		private final BiFunction<Connect4, Character, Connect4ComputerPlayer> factory;
+		private long wins;
+		private long draws;
+		private long losses;
+		private long moves;
+		private long nodes;
+		private long nanos;
+
+		/**
+		 * Creates an entrant
+		 *
+		 * @param name    name in the report
+		 * @param factory creates the player for a game and token
+		 */
+		public Entrant(String name, BiFunction<Connect4, Character, Connect4ComputerPlayer> factory) {
+			this.name = name;
+			this.factory = factory;
+		}
+
+		/**
+		 * Parses random, depth:N, time:MS, mcts:PLAYOUTS or mcts-time:MS
+		 *
+		 * @param spec configuration
+		 * @return the entrant
+		 * @throws IllegalArgumentException if spec is not a configuration
+		 */
+		public static Entrant parse(String spec) throws IllegalArgumentException {
+			String[] parts = spec.split(":");
+			long value;
+			try {
+				value = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad configuration " + spec);
+			}
+			switch (parts[0]) {
+			case "random":
+				return new Entrant(spec, (game, token) -> new Connect4ComputerPlayer(game, token, 0));
+			case "depth":
+				return new Entrant(spec, (game, token) -> {
+					Connect4ComputerPlayer player = new Connect4ComputerPlayer(game, token, (int) value);
+					player.setNodeLimit(Long.MAX_VALUE);
+					return player;
+				});
+			case "time":
+				return new Entrant(spec, (game, token) -> {
+					Connect4ComputerPlayer player = new Connect4ComputerPlayer(game, token,
+							game.getRules().getCells());
+					player.setNodeLimit(Long.MAX_VALUE);
+					player.setTimeLimit(value);
+					return player;
+				});
+			case "mcts":
+			case "mcts-time":
+				return new Entrant(spec, (game, token) -> {
+					Connect4ComputerPlayer player = new Connect4ComputerPlayer(game, token, 0);
+					MonteCarloEngine monteCarlo = new MonteCarloEngine(game.getRules());
+					if (parts[0].equals("mcts")) {
+						monteCarlo.setPlayoutLimit(value);
+					} else {
+						monteCarlo.setPlayoutLimit(Long.MAX_VALUE);
+						monteCarlo.setTimeLimit(value);
+					}
+					player.setMonteCarloEngine(monteCarlo);
+					return player;
+				});
+			default:
+				throw new IllegalArgumentException("Bad configuration " + spec);
+			}
+		}
+
+		/**
+		 * Returns the name of the entrant
+		 *
+		 * @return configuration name
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Outcome and costs of one game
+	 */
+	private static final class Game {
+		private final int first;
+		private final int second;
+		/** 1 if first won, -1 if second won, 0 for a draw */
+		private int result;
+		private final long[] moves = new long[2];
+		private final long[] nodes = new long[2];
+		private final long[] nanos = new long[2];
+
+		Game(int first, int second) {
+			this.first = first;
+			this.second = second;
+		}
+	}
+
+	/**
+	 * Plays every pairing
+	 *
+	 * @throws InterruptedException if interrupted while waiting for games
+	 */
+	public void run() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Game>> futures = new ArrayList<Future<Game>>();
+		Random random = new Random(seed);
+		for (int a = 0; a < entrants.size(); a++) {
+			for (int b = a + 1; b < entrants.size(); b++) {
+				for (int g = 0; g < gamesPerPair; g += 2) {
+					long openingSeed = random.nextLong();
+					int ia = a;
+					int ib = b;
+					futures.add(pool.submit(() -> play(ia, ib, openingSeed)));
+					futures.add(pool.submit(() -> play(ib, ia, openingSeed)));
+				}
+			}
+		}
+		try {
+			for (Future<Game> future : futures) {
+				Game game = future.get();
+				record(entrants.get(game.first), game, 0, game.result);
+				record(entrants.get(game.second), game, 1, -game.result);
+				int low = Math.min(game.first, game.second);
+				int high = Math.max(game.first, game.second);
+				int lowResult = game.first == low ? game.result : -game.result;
+				pairResults[low * entrants.size() + high][1 - lowResult]++;
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static void record(Entrant entrant, Game game, int side, int result) {
+		if (result > 0)
+			entrant.wins++;
+		else if (result < 0)
+			entrant.losses++;
+		else
+			entrant.draws++;
+		entrant.moves += game.moves[side];
+		entrant.nodes += game.nodes[side];
+		entrant.nanos += game.nanos[side];
+	}
+
+	/**
+	 * Plays one game on its own board, first entrant as 'X'
+	 */
+	private Game play(int first, int second, long openingSeed) throws Exception {
+		Game game = new Game(first, second);
+		Connect4 connect4 = new Connect4(rules);
+		GameBoard gb = connect4.getGameBoard();
+		Connect4ComputerPlayer[] players = { entrants.get(first).factory.apply(connect4, 'X'),
+				entrants.get(second).factory.apply(connect4, 'O') };
+		Random random = new Random(openingSeed);
+		for (int ply = 0;; ply++) {
+			int side = ply % 2;
+			int column;
+			if (ply < openingPlies) {
+				int legal = gb.getLegalColumns();
+				for (int skip = random.nextInt(Integer.bitCount(legal)); skip > 0; skip--)
+					legal &= legal - 1;
+				column = Integer.numberOfTrailingZeros(legal);
+			} else {
+				long start = System.nanoTime();
+				column = players[side].chooseColumn();
+				game.nanos[side] += System.nanoTime() - start;
+				game.nodes[side] += players[side].getLastNodes();
+				game.moves[side]++;
+			}
+			int row = gb.setToken(column + 1, players[side].getChar());
+			// checkWinnerServer only looks at the last move and prints nothing
+			if (connect4.checkWinnerServer(players[side], row, column)) {
+				// a win inside the random opening does not count for either side
+				game.result = ply < openingPlies ? 0 : side == 0 ? 1 : -1;
+				return game;
+			}
+			if (gb.isFull())
+				return game;
+		}
+	}
+
+	/**
+	 * Prints the score table and the Elo difference of every pairing
+	 *
+	 * @param out stream to print to
+	 */
+	public void report(PrintStream out) {
+		out.printf("%-14s %6s %6s %6s %7s %12s %10s%n", "entrant", "wins", "draws", "losses", "score", "nodes/s",
+				"ms/move");
+		for (Entrant e : entrants) {
+			long games = e.wins + e.draws + e.losses;
+			double score = games == 0 ? 0 : (e.wins + 0.5 * e.draws) / games;
+			double seconds = e.nanos / 1e9;
+			out.printf("%-14s %6d %6d %6d %6.1f%% %,12.0f %10.2f%n", e.name, e.wins, e.draws, e.losses, 100 * score,
+					seconds > 0 ? e.nodes / seconds : 0, e.moves == 0 ? 0 : e.nanos / 1e6 / e.moves);
+		}
+		out.println();
+		out.println("Elo of the first entrant over the second, 95% confidence interval");
+		for (int a = 0; a < entrants.size(); a++) {
+			for (int b = a + 1; b < entrants.size(); b++)
+				out.println(pairing(a, b));
+		}
+	}
+
+	/**
+	 * Formats the results and Elo difference of entrant a over entrant b
+	 */
+	private String pairing(int a, int b) {
+		long[] wdl = pairResults[a * entrants.size() + b];
+		long n = wdl[0] + wdl[1] + wdl[2];
+		double score = (wdl[0] + 0.5 * wdl[1]) / n;
+		double variance = (wdl[0] * Math.pow(1 - score, 2) + wdl[1] * Math.pow(0.5 - score, 2)
+				+ wdl[2] * Math.pow(score, 2)) / n;
+		double margin = 1.96 * Math.sqrt(variance / n);
+		return String.format("%-14s vs %-14s +%d -%d =%d  Elo %s [%s, %s]", entrants.get(a).name,
+				entrants.get(b).name, wdl[0], wdl[2], wdl[1], elo(score), elo(score - margin), elo(score + margin));
+	}
+
+	private static String elo(double score) {
+		if (score <= 0)
+			return "-inf";
+		if (score >= 1)
+			return "+inf";
+		return String.format("%+.0f", -400 * Math.log10(1 / score - 1));
+	}
+
+	/**
+	 * Plays a tournament and prints the report
+	 *
+	 * @param args configurations, optionally preceded by games=N (default 100
+	 *             per pairing), plies=N (random opening moves, default 2) and
+	 *             threads=N (default every core)
+	 * @throws InterruptedException if interrupted
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int games = 100;
+		int plies = 2;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Entrant> entrants = new ArrayList<Entrant>();
+		for (String arg : args) {
+			if (arg.startsWith("games="))
+				games = Integer.parseInt(arg.substring(6));
+			else if (arg.startsWith("plies="))
+				plies = Integer.parseInt(arg.substring(6));
+			else if (arg.startsWith("threads="))
+				threads = Integer.parseInt(arg.substring(8));
+			else
+				entrants.add(Entrant.parse(arg));
+		}
+		if (entrants.isEmpty()) {
+			entrants.add(Entrant.parse("random"));
+			entrants.add(Entrant.parse("depth:4"));
+			entrants.add(Entrant.parse("mcts:2000"));
+		}
+		long start = System.currentTimeMillis();
+		Tournament tournament = new Tournament(entrants, Connect4Rules.STANDARD, games, plies, threads, 1);
+		tournament.run();
+		tournament.report(System.out);
+		System.out.printf("%n%d threads, %.1f s%n", threads, (System.currentTimeMillis() - start) / 1000.0);
+	}
+}
@@ -0,0 +1,253 @@
+package core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size transposition table for the engine. Entries live in one
+ * preallocated long[] so storing and probing never allocate. Buckets hold two
+ * entries: the first keeps the deepest result of the current search, the
+ * second is always replaced.
+ * <p>
+ * Each entry is two longs, key ^ data and data, so a torn write from another
+ * thread fails the key check and reads as a miss. The counters are
+ * LongAdders, so engines sharing a table count every probe and store without
+ * contending on one field.
+ *
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Engine
+ */
+public final class TranspositionTable {
+	/** Bound type of a score that is exact */
+	public static final int EXACT = 1;
+	/** Bound type of a score that is a lower bound, the search failed high */
+	public static final int LOWER = 2;
+	/** Bound type of a score that is an upper bound, the search failed low */
+	public static final int UPPER = 3;
+
+	private final long[] table;
+	private final int shift;
+	private int generation;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder collisions = new LongAdder();
+	private final LongAdder stores = new LongAdder();
+	private final LongAdder replacements = new LongAdder();
+
+	/**
+	 * Creates a table of 2^bits buckets, 32 bytes each
+	 *
+	 * @param bits log2 of the number of buckets, 1 to 26
+	 */
+	public TranspositionTable(int bits) {
+		if (bits < 1 || bits > 26)
+			throw new IllegalArgumentException("Table bits must be between 1 and 26");
+		table = new long[4 << bits];
+		shift = 64 - bits;
+	}
+
+	/**
+	 * Returns the key of a position, unique for boards that fit in 64 bits.
+	 * Both masks are updated incrementally by every move, so the key costs one
+	 * addition.
+	 *
+	 * @param current tokens of the player to move
+	 * @param mask    all tokens on the board
+	 * @return position key
+	 */
+	public static long key(long current, long mask) {
+		return current + mask;
+	}
+
+	/**
+	 * Looks up a position
+	 *
+	 * @param key position key
+	 * @return packed entry, 0 on a miss
+	 */
+	public long probe(long key) {
+		int i = index(key);
+		long data = table[i + 1];
+		if ((table[i] ^ data) == key && data != 0) {
+			hits.increment();
+			return data;
+		}
+		long data2 = table[i + 3];
+		if ((table[i + 2] ^ data2) == key && data2 != 0) {
+			hits.increment();
+			return data2;
+		}
+		misses.increment();
+		if (data != 0 || data2 != 0)
+			collisions.increment();
+		return 0;
+	}
+
+	/**
+	 * Stores a search result
+	 *
+	 * @param key   position key
+	 * @param score score of the position for the player to move
+	 * @param depth remaining depth the score was searched to
+	 * @param bound EXACT, LOWER or UPPER
+	 * @param move  best 0-based column, -1 if none
+	 */
+	public void store(long key, int score, int depth, int bound, int move) {
+		long data = (score & 0xFFFFFFFFL) | (long) Math.min(depth, 255) << 32 | (long) bound << 40
+				| (long) (move + 1) << 42 | (long) (generation & 0xFF) << 50;
+		int i = index(key);
+		long old = table[i + 1];
+		stores.increment();
+		if (old == 0 || (table[i] ^ old) == key || depth(old) <= depth || generation(old) != (generation & 0xFF)) {
+			if (old != 0 && (table[i] ^ old) != key)
+				replacements.increment();
+			table[i] = key ^ data;
+			table[i + 1] = data;
+		} else {
+			if (table[i + 3] != 0 && (table[i + 2] ^ table[i + 3]) != key)
+				replacements.increment();
+			table[i + 2] = key ^ data;
+			table[i + 3] = data;
+		}
+	}
+
+	/**
+	 * Marks the start of a new search so entries of earlier searches are
+	 * replaced first
+	 */
+	public void newSearch() {
+		generation++;
+	}
+
+	/**
+	 * Empties the table and resets the counters
+	 */
+	public void clear() {
+		Arrays.fill(table, 0);
+		resetStats();
+	}
+
+	/**
+	 * Resets the hit, miss, collision and store counters
+	 */
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+		collisions.reset();
+		stores.reset();
+		replacements.reset();
+	}
+
+	/**
+	 * Returns the score of an entry
+	 *
+	 * @param data packed entry
+	 * @return stored score
+	 */
+	public static int score(long data) {
+		return (int) data;
+	}
+
+	/**
+	 * Returns the depth of an entry
+	 *
+	 * @param data packed entry
+	 * @return stored depth
+	 */
+	public static int depth(long data) {
+		return (int) (data >>> 32) & 0xFF;
+	}
+
+	/**
+	 * Returns the bound type of an entry
+	 *
+	 * @param data packed entry
+	 * @return EXACT, LOWER or UPPER
+	 */
+	public static int bound(long data) {
+		return (int) (data >>> 40) & 0x3;
+	}
+
+	/**
+	 * Returns the best move of an entry
+	 *
+	 * @param data packed entry
+	 * @return 0-based column, -1 if none
+	 */
+	public static int move(long data) {
+		return ((int) (data >>> 42) & 0xFF) - 1;
+	}
+
+	private static int generation(long data) {
+		return (int) (data >>> 50) & 0xFF;
+	}
+
+	/**
+	 * Returns the index of the first long of a key's bucket
+	 */
+	private int index(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift) << 2;
+	}
+
+	/**
+	 * Returns the number of entries the table can hold
+	 *
+	 * @return capacity in entries
+	 */
+	public int capacity() {
+		return table.length / 2;
+	}
+
+	/**
+	 * Returns the number of probes that found their position
+	 *
+	 * @return hit count
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of probes that did not find their position
+	 *
+	 * @return miss count
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of misses whose bucket held other positions
+	 *
+	 * @return collision count
+	 */
+	public long getCollisions() {
+		return collisions.sum();
+	}
+
+	/**
+	 * Returns the number of stores
+	 *
+	 * @return store count
+	 */
+	public long getStores() {
+		return stores.sum();
+	}
+
+	/**
+	 * Returns the number of stores that overwrote another position
+	 *
+	 * @return replacement count
+	 */
+	public long getReplacements() {
+		return replacements.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "TranspositionTable[entries=" + capacity() + ", hits=" + hits.sum() + ", misses=" + misses.sum()
+				+ ", collisions=" + collisions.sum() + ", stores=" + stores.sum() + ", replacements="
+				+ replacements.sum() + "]";
+	}
+}
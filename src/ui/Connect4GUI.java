@@ -7,16 +7,21 @@ import core.Connect4;
 import core.Connect4.GameBoard;
 import core.Connect4.Player;
 import core.Connect4ComputerPlayer;
+import core.Connect4Rules;
+import core.OpeningBook;
 import javafx.animation.PauseTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.stage.Stage;
 import javafx.util.Callback;
 import javafx.util.Duration;
+import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.ButtonBar.ButtonData;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
+import javafx.scene.input.KeyCode;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
@@ -35,12 +40,16 @@ public class Connect4GUI extends Application {
 	protected GameBoard gb;
 	protected Connect4 connect4;
 	private boolean play;
+	private boolean thinking;
 	protected int compCol;
 	private Label lblStatus;
 	protected boolean isPlayerOpponent;
 	protected Player currPlayer;
+	protected Connect4Rules rules = Connect4Rules.STANDARD;
+	protected long computerMoveMillis = 250;
+	private static final OpeningBook openingBook = OpeningBook.openDefault();
 
-	protected Cell[][] cells = new Cell[6][7];
+	protected Cell[][] cells;
 	
 	/**
 	 * Entry for JavaFX
@@ -72,10 +81,16 @@ public class Connect4GUI extends Application {
 		borderPane.setCenter(pane);
 		borderPane.setBottom(lblStatus);
 		
-		for (int i = 0; i < 6; i++)
-			for (int j = 0; j < 7; j++)
+		cells = new Cell[rules.getRows()][rules.getCols()];
+		for (int i = 0; i < rules.getRows(); i++)
+			for (int j = 0; j < rules.getCols(); j++)
 	 			pane.add(cells[i][j] = new Cell(i,j), j, i);
 		Scene scene = new Scene(borderPane, 450, 385);
+		// Backspace or Ctrl+Z takes the last move back
+		scene.setOnKeyPressed(e -> {
+			if (e.getCode() == KeyCode.BACK_SPACE || (e.isShortcutDown() && e.getCode() == KeyCode.Z))
+				takeBack();
+		});
 		primaryStage.setTitle("Welcome to Connect4"); // Set the stage title
 		primaryStage.setScene(scene); // Place the scene in the stage
 		primaryStage.show(); // Display the stage
@@ -83,12 +98,12 @@ public class Connect4GUI extends Application {
 	
 	/**
 	 * Initializes the game depending on if the opponent is a player or a computer
-	 * Changes the names accordingly.
+	 * Changes the names accordingly. The board follows the rules field.
 	 * 
 	 * @param playerOpponent boolean if the opponent is a player
 	 */
 	protected void initializeGame(boolean playerOpponent) {
-		connect4 = new Connect4();
+		connect4 = new Connect4(rules);
 		playerX = connect4.new Player('X');
 		isPlayerOpponent = playerOpponent;
 		if(playerOpponent) {
@@ -97,7 +112,12 @@ public class Connect4GUI extends Application {
 			playerX.setName("Red");
 		} else {
 			playerX.setName("You");
-			playerO = new Connect4ComputerPlayer(connect4, 'O');
+			// the time budget, not the depth, limits the computer's search
+			Connect4ComputerPlayer computer = new Connect4ComputerPlayer(connect4, 'O', rules.getCells());
+			computer.setNodeLimit(Long.MAX_VALUE);
+			computer.setTimeLimit(computerMoveMillis);
+			computer.setOpeningBook(openingBook);
+			playerO = computer;
 			playerO.setName("Computer");
 		}
 		
@@ -144,6 +164,26 @@ public class Connect4GUI extends Application {
 		return false;
 	}
 	
+	/**
+	 * Takes back the last move. Against the computer its reply is taken back
+	 * too, so it is the human's turn again. A finished game is reopened.
+	 */
+	protected void takeBack() {
+		if (thinking)
+			return;
+		int plies = !isPlayerOpponent && gb.getMoveCount() % 2 == 0 ? 2 : 1;
+		if (gb.getMoveCount() < plies)
+			return;
+		for (int i = 0; i < plies; i++) {
+			int row = gb.getLastRow();
+			int column = gb.undoMove();
+			cells[row][column].clearToken();
+		}
+		currPlayer = gb.getMoveCount() % 2 == 0 ? playerX : playerO;
+		play = true;
+		lblStatus.setText("Move taken back. " + currPlayer.getName() + "'s turn.");
+	}
+	
 	/**
 	 * Cell class that is the space for where a user can place a token.
 	 * 
@@ -229,6 +269,16 @@ public class Connect4GUI extends Application {
 		 	}
 		 	
 	    }
+	    
+	    /**
+	     * Removes the drawn token, leaving the empty cell
+	     */
+	    public void clearToken() {
+	    	token = ' ';
+	    	if (getChildren().size() > 1)
+	    		getChildren().remove(getChildren().size() - 1);
+	    }
+	    
 	    public void setToken(char otherToken) {
 	    	token = otherToken;
 	    	
@@ -276,16 +326,27 @@ public class Connect4GUI extends Application {
 		 	    		lblStatus.setText(currPlayer.getName() + "'s turn.");
 		 	    	
 		 	    	if(currPlayer.getClass() == Connect4ComputerPlayer.class) {
-		 	    		this.getParent().getParent().setDisable(true);
+		 	    		Parent board = this.getParent().getParent();
+		 	    		board.setDisable(true);
+		 	    		thinking = true;
+		 	    		Player computer = currPlayer;
 
-		 	    		compCol = currPlayer.takeTurnGUI();
-		 	    		
-		 	    	    setTokenInGB(compCol, currPlayer.getChar());
-		 	    	    if(!checkWinner(currPlayer.getChar()))
-		 	    	    	lblStatus.setText("Computer(Yellow) chose col: " + 
-		 	    	                         (compCol+1) +". Now, it is your(Red) turn.");
-		 	    	    currPlayer = playerX;
-		 	    	    this.getParent().getParent().setDisable(false);
+		 	    		// search off the JavaFX thread so the window keeps drawing, then play on it
+		 	    		Thread search = new Thread(() -> {
+		 	    			int column = computer.takeTurnGUI();
+		 	    			Platform.runLater(() -> {
+		 	    				compCol = column;
+		 	    				setTokenInGB(compCol, computer.getChar());
+		 	    				if(!checkWinner(computer.getChar()))
+		 	    					lblStatus.setText("Computer(Yellow) chose col: " + 
+		 	    							(compCol+1) +". Now, it is your(Red) turn.");
+		 	    				currPlayer = playerX;
+		 	    				thinking = false;
+		 	    				board.setDisable(false);
+		 	    			});
+		 	    		}, "computer move");
+		 	    		search.setDaemon(true);
+		 	    		search.start();
 		 	    	}
 		 		}
 		 	}else if(play) {
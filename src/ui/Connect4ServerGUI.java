@@ -0,0 +1,102 @@
+package ui;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import core.Connect4Server;
+import core.ServerLog;
+import core.SessionThreads;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextArea;
+import javafx.stage.Stage;
+
+/**
+ * Server window: runs a Connect4Server and shows the latest lines of its log.
+ * The window only reads the log's ring buffer, so it holds no more than the
+ * log's capacity however long the server runs, and Connect4Server.main runs
+ * the same server without it.
+ * 
+ * @author Abraham Gomez
+ * @version 1.0
+ * @see Connect4Server
+ * @see ServerLog
+ */
+public class Connect4ServerGUI extends Application {
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private Connect4Server server;
+	private ServerLog serverLog;
+	private TextArea taLog;
+
+	/**
+	 * Entry to Server Program. Takes --port=N, --threads=virtual, --lines=N and
+	 * --log=FILE like Connect4Server.main.
+	 */
+	@Override
+	public void start(Stage primaryStage) {
+		taLog = new TextArea();
+		taLog.setEditable(false);
+
+		// scene
+		Scene scene = new Scene(new ScrollPane(taLog), 450, 200);
+		primaryStage.setTitle("Connect4 Server"); // Set the stage title
+		primaryStage.setScene(scene); // Place the scene in the stage
+		primaryStage.show(); // Display the stage
+
+		Map<String, String> named = getParameters().getNamed();
+		int port = Integer.parseInt(named.getOrDefault("port", "8000"));
+		int lines = Integer.parseInt(named.getOrDefault("lines", String.valueOf(ServerLog.DEFAULT_CAPACITY)));
+		SessionThreads threads = SessionThreads.forMode(named.getOrDefault("threads", "platform"), "session");
+		serverLog = new ServerLog(lines);
+		try {
+			if (named.containsKey("log"))
+				serverLog.openFile(named.get("log"));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		serverLog.addListener(this::refreshLater);
+		server = new Connect4Server(port, threads, serverLog);
+		threads.start(server::serve);
+	}
+
+	/**
+	 * Schedules one refresh of the window for any number of lines logged
+	 * before it runs
+	 */
+	private void refreshLater() {
+		if (refreshing.compareAndSet(false, true))
+			Platform.runLater(this::refresh);
+	}
+
+	/**
+	 * Shows the lines in the log's buffer, scrolled to the latest
+	 */
+	private void refresh() {
+		refreshing.set(false);
+		taLog.setText(String.join("\n", serverLog.getLines()) + '\n');
+		taLog.setScrollTop(Double.MAX_VALUE);
+	}
+
+	/**
+	 * Stops the server and closes the log file when the window closes
+	 */
+	@Override
+	public void stop() {
+		if (server != null)
+			server.stop();
+		if (serverLog != null)
+			serverLog.close();
+	}
+
+	/**
+	 * Used when running from eclipse
+	 * 
+	 * @param args string arguments
+	 */
+	public static void main(String[] args) {
+		launch(args);
+	}
+}